@@ -0,0 +1,858 @@
+package tankbot;
+
+import java.awt.event.KeyEvent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.JPanel;
+
+/**
+ * Microbenchmarks for the hot paths between the joystick and the pins, so a
+ * regression shows up on a PC before it gets anywhere near the Pi.
+ *
+ * Runs headless: the joystick is a SyntheticController and pins are written
+ * to a null sink or a simulated GPIO block instead of the Pi. Run with "ant bench", or run this
+ * class with the names of the benchmarks to run as arguments (default all).
+ *
+ * Each benchmark is warmed up, then timed over several iterations. Reports
+ * the mean and best time per operation, and bytes allocated per operation
+ * where the JVM can tell us. The ones which are meant to create no garbage
+ * at all fail the run if they allocate anything.
+ *
+ * Also runs stress checks, which hammer something shared between threads and
+ * count how often a reader saw a state that was never published. They're run
+ * by name like the benchmarks, "stress.MotorState" checks MotorState.read()
+ * and "stress.MotorMailbox" checks MotorMailbox.take().
+ * "check.watchdog" runs a client and server on localhost and checks driving
+ * carries on after the link drops out for long enough to trip the watchdog.
+ * "check.pins" checks what setting pins actually does, both the lines
+ * written for pi-blaster and the simulated GPIO registers.
+ *
+ * @author Luke
+ */
+public class Benchmarks {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    //roughly how long each iteration should take
+    private static final long ITERATION_NANOS = 200000000L;
+
+    //results go here so the JIT can't throw the work away
+    public static volatile long sink;
+
+    //what went wrong, the run fails at the end if there's anything here
+    private static final List<String> failures = new ArrayList<>();
+
+    /**
+     * One thing to measure
+     */
+    private static abstract class Benchmark {
+
+        final String name;
+        //fail if it allocates anything
+        final boolean allocationFree;
+
+        Benchmark(String name) {
+            this(name, false);
+        }
+
+        Benchmark(String name, boolean allocationFree) {
+            this.name = name;
+            this.allocationFree = allocationFree;
+        }
+
+        /**
+         * Do the operation being measured ops times
+         *
+         * @param ops
+         * @throws Exception
+         */
+        abstract void run(long ops) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Benchmark> benchmarks = createBenchmarks();
+        System.out.println(String.format("%-32s %12s %12s %12s", "benchmark", "mean ns/op", "best ns/op", "bytes/op"));
+        for (Benchmark benchmark : benchmarks) {
+            if (args.length == 0 || contains(args, benchmark.name)) {
+                measure(benchmark);
+            }
+        }
+        if (args.length == 0 || contains(args, "stress.MotorState")) {
+            stressMotorState();
+        }
+        if (args.length == 0 || contains(args, "stress.MotorMailbox")) {
+            stressMotorMailbox();
+        }
+        if (args.length == 0 || contains(args, "latency.input")) {
+            inputLatency();
+        }
+        if (args.length == 0 || contains(args, "check.pins")) {
+            checkPins();
+        }
+        if (args.length == 0 || contains(args, "check.watchdog")) {
+            checkWatchdog();
+        }
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                System.err.println("FAILED: " + failure);
+            }
+            System.exit(1);
+        }
+    }
+
+    //slow enough that waiting for a tick would really show
+    private static final double LATENCY_CONTROL_RATE = 10;
+
+    /**
+     * Drive MotorState from JoystickInput with the control loop ticking
+     * slowly, and time how long each change takes from the input thread
+     * reading it to MotorState publishing it. Polling from the control loop
+     * instead would average half a tick, 50ms at 10Hz.
+     *
+     * @throws InterruptedException
+     */
+    private static void inputLatency() throws InterruptedException {
+        SyntheticController joystick = new SyntheticController(true);
+        final ControlLoop loop = new ControlLoop("LatencyLoop", LATENCY_CONTROL_RATE);
+        JoystickInput input = new JoystickInput(joystick, 0.01f, 1000, new Runnable() {
+
+            @Override
+            public void run() {
+                loop.wakeup();
+            }
+        }, null);
+        final MotorState motorState = new MotorState(joystick, new Properties(), input);
+        final MotorSnapshot snapshot = new MotorSnapshot(motorState.getNumMotors());
+        final long[] stats = new long[3];
+        loop.addStage(new Runnable() {
+
+            @Override
+            public void run() {
+                motorState.update();
+            }
+        });
+        loop.addStage(new Runnable() {
+
+            @Override
+            public void run() {
+                int version = snapshot.getVersion();
+                motorState.read(snapshot);
+                if (snapshot.getVersion() != version) {
+                    long micros = Clock.nowMicros() - snapshot.getCaptureMicros();
+                    stats[0]++;
+                    stats[1] += micros;
+                    stats[2] = Math.max(stats[2], micros);
+                }
+            }
+        });
+        loop.start();
+        input.start();
+        Thread.sleep(STRESS_NANOS / 1000000L);
+        input.stop();
+        loop.stop();
+        //let the loop finish its last tick before looking at the stats
+        Thread.sleep(2 * Math.round(1000 / LATENCY_CONTROL_RATE));
+        System.out.println(String.format("%-32s %d events, %d wakeups, %d updates, capture to update mean %dus max %dus",
+                "latency.input", input.getEvents(), loop.getWakeups(), stats[0],
+                stats[0] == 0 ? 0 : stats[1] / stats[0], stats[2]));
+    }
+
+    //how long to wait for the client and server to get going, or get going again
+    private static final long CHECK_TIMEOUT_MS = 5000;
+
+    //how long to watch a pulsing pin for
+    private static final long DUTY_SAMPLE_NANOS = 1000000000L;
+    //how far the measured duty can be from what was set, sampling isn't exact
+    private static final double DUTY_TOLERANCE = 0.1;
+
+    /**
+     * Set some pins through a PinWriteBatch to a file and check exactly what
+     * pi-blaster would have been sent, then through SimulatedGpioBackend and
+     * check the registers: pins set to 0 or 1 are outputs at that level, and
+     * a pin set to a fraction is high for about that much of the time.
+     *
+     * @throws Exception
+     */
+    private static void checkPins() throws Exception {
+        File file = File.createTempFile("pi-blaster", ".check");
+        file.deleteOnExit();
+        PinWriteBatch batch = new PinWriteBatch(new ChannelPinSink(file));
+        batch.set(17, true);
+        batch.set(18, false);
+        batch.set(4, 0.25f);
+        batch.flush();
+        //nothing changed, so nothing written
+        batch.set(17, true);
+        batch.set(18, false);
+        batch.set(4, 0.25f);
+        batch.flush();
+        batch.set(4, 0.5f);
+        batch.set(18, true);
+        batch.flush();
+        String expected = "17=1\n18=0\n4=0.25\n4=0.50\n18=1\n";
+        String written = new String(Files.readAllBytes(file.toPath()), "US-ASCII");
+        if (!written.equals(expected)) {
+            failures.add("check.pins: pi-blaster was sent \"" + written.replace("\n", "\\n") + "\" not \"" + expected.replace("\n", "\\n") + "\"");
+        }
+
+        SimulatedGpioBackend gpio = new SimulatedGpioBackend(100);
+        gpio.set(17, true);
+        gpio.set(18, false);
+        gpio.flush();
+        checkLevel(gpio, 17, true);
+        checkLevel(gpio, 18, false);
+        gpio.set(17, false);
+        gpio.set(18, true);
+        gpio.flush();
+        checkLevel(gpio, 17, false);
+        checkLevel(gpio, 18, true);
+
+        double[] duties = {0.25, 0.75, 0, 1};
+        StringBuilder measured = new StringBuilder();
+        for (double duty : duties) {
+            gpio.set(4, (float) duty);
+            gpio.flush();
+            if (gpio.getDuty(4) != Math.round(duty * 100)) {
+                failures.add("check.pins: pin 4 set to " + duty + " has duty " + gpio.getDuty(4));
+            }
+            double high = measureDuty(gpio, 4);
+            measured.append(String.format(" %.2f=%.2f", duty, high));
+            if (Math.abs(high - duty) > DUTY_TOLERANCE) {
+                failures.add(String.format("check.pins: pin 4 set to %.2f was high %.2f of the time", duty, high));
+            }
+        }
+        if (gpio.getFunction(4) != 1) {
+            failures.add("check.pins: pin 4 isn't an output");
+        }
+        System.out.println(String.format("%-32s pi-blaster %s, duty set=measured%s",
+                "check.pins", written.equals(expected) ? "ok" : "wrong", measured));
+    }
+
+    private static void checkLevel(SimulatedGpioBackend gpio, int pin, boolean high) {
+        if (gpio.getFunction(pin) != 1) {
+            failures.add("check.pins: pin " + pin + " isn't an output");
+        }
+        if (gpio.isHigh(pin) != high) {
+            failures.add("check.pins: pin " + pin + " should be " + (high ? "high" : "low"));
+        }
+    }
+
+    /**
+     * @return how much of the time a pin was high, sampled for
+     * DUTY_SAMPLE_NANOS after letting a period go by
+     */
+    private static double measureDuty(SimulatedGpioBackend gpio, int pin) throws InterruptedException {
+        //let the pwm thread pick up the new duty
+        Thread.sleep(50);
+        long samples = 0, high = 0;
+        long end = System.nanoTime() + DUTY_SAMPLE_NANOS;
+        while (System.nanoTime() - end < 0) {
+            if (gpio.isHigh(pin)) {
+                high++;
+            }
+            samples++;
+            LockSupport.parkNanos(100000);
+        }
+        return (double) high / samples;
+    }
+
+    /**
+     * Drive a server on localhost with a client, through a relay which can
+     * hold up everything in both directions like a wifi dropout. Hold the
+     * stick forwards, drop the link for long enough to trip the watchdog, then
+     * bring it back: the client's heartbeats get through first, which don't
+     * clear the watchdog, so it has to notice from the telemetry and send its
+     * drive frame again.
+     *
+     * @throws Exception
+     */
+    private static void checkWatchdog() throws Exception {
+        Properties properties = new Properties();
+        //so the motors get where they're going straight away
+        properties.setProperty("maxAcceleration", "0");
+        properties.setProperty("maxDeceleration", "0");
+        int serverPort;
+        try (ServerSocket free = new ServerSocket(0)) {
+            serverPort = free.getLocalPort();
+        }
+        final Server server = new Server(serverPort, properties, false, new CountingPinSink());
+        Thread serverThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                server.serve();
+            }
+        }, "CheckServer");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        PausableRelay relay = new PausableRelay(serverPort);
+
+        Client client = new Client(properties, false);
+        client.getControlLoop().start();
+        client.connectTo("127.0.0.1", relay.getPort());
+        client.getMotorState().keyDown(new KeyEvent(new JPanel(), KeyEvent.KEY_PRESSED, 0, 0, KeyEvent.VK_W, KeyEvent.CHAR_UNDEFINED));
+        try {
+            if (!awaitDriving(client, Clock.nowMicros())) {
+                failures.add("check.watchdog: never started driving");
+                return;
+            }
+            relay.setPaused(true);
+            Thread.sleep(2 * WireProtocol.getWatchdogMs(properties));
+            long fires = server.getWatchdogFires();
+            long resumeMicros = Clock.nowMicros();
+            relay.setPaused(false);
+            if (fires == 0) {
+                failures.add("check.watchdog: the dropout didn't trip the watchdog");
+                return;
+            }
+            boolean resumed = awaitDriving(client, resumeMicros);
+            System.out.println(String.format("%-32s watchdog fired %d times, %s",
+                    "check.watchdog", fires, resumed ? "driving again after " + (Clock.nowMicros() - resumeMicros) / 1000 + "ms" : "never drove again"));
+            if (!resumed) {
+                failures.add("check.watchdog: still stopped after the link came back");
+            }
+        } finally {
+            client.getControlLoop().stop();
+            relay.close();
+        }
+    }
+
+    /**
+     * @param client
+     * @param sinceMicros only believe telemetry the server sent after this
+     * (the server is on the same clock)
+     * @return true once telemetry says the motors are moving and the watchdog
+     * hasn't tripped, false if it doesn't within CHECK_TIMEOUT_MS
+     * @throws InterruptedException
+     */
+    private static boolean awaitDriving(Client client, long sinceMicros) throws InterruptedException {
+        long deadline = System.nanoTime() + CHECK_TIMEOUT_MS * 1000000L;
+        while (System.nanoTime() - deadline < 0) {
+            Telemetry telemetry = client.getTelemetry();
+            if (telemetry != null && telemetry.getServerMicros() > sinceMicros
+                    && !telemetry.isWatchdogTripped() && telemetry.getSpeed(0) != 0) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    //how long each stress check runs for
+    private static final long STRESS_NANOS = 2000000000L;
+    private static final int STRESS_READERS = 3;
+    private static final long STRESS_POST_GAP_NANOS = 1000;
+
+    /**
+     * One thread presses keys and updates MotorState as fast as it can while
+     * others read it. Every key used sets both motors the same, so a reader
+     * that sees them differ has seen half of one update and half of another,
+     * which fails the run.
+     *
+     * @throws InterruptedException
+     */
+    private static void stressMotorState() throws InterruptedException {
+        final MotorState motorState = new MotorState(null, new Properties());
+        JPanel source = new JPanel();
+        final KeyEvent[] downs = new KeyEvent[3];
+        final KeyEvent[] ups = new KeyEvent[3];
+        int[] codes = {KeyEvent.VK_W, KeyEvent.VK_S, KeyEvent.VK_SPACE};
+        for (int i = 0; i < codes.length; i++) {
+            downs[i] = new KeyEvent(source, KeyEvent.KEY_PRESSED, 0, 0, codes[i], KeyEvent.CHAR_UNDEFINED);
+            ups[i] = new KeyEvent(source, KeyEvent.KEY_RELEASED, 0, 0, codes[i], KeyEvent.CHAR_UNDEFINED);
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong updates = new AtomicLong();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong torn = new AtomicLong();
+
+        Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                long n = 0;
+                while (running.get()) {
+                    int key = (int) (n % downs.length);
+                    motorState.keyDown(downs[key]);
+                    motorState.update();
+                    motorState.keyUp(ups[key]);
+                    n++;
+                }
+                updates.set(n);
+            }
+        }, "StressWriter");
+
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < STRESS_READERS; r++) {
+            readers.add(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    MotorSnapshot snapshot = new MotorSnapshot(motorState.getNumMotors());
+                    long n = 0, bad = 0;
+                    while (running.get()) {
+                        motorState.read(snapshot);
+                        if (snapshot.getSpeed(0) != snapshot.getSpeed(1) || snapshot.getBrake(0) != snapshot.getBrake(1)) {
+                            bad++;
+                        }
+                        n++;
+                    }
+                    reads.addAndGet(n);
+                    torn.addAndGet(bad);
+                }
+            }, "StressReader" + r));
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(STRESS_NANOS / 1000000L);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        System.out.println(String.format("%-32s %d updates, %d reads, %d torn",
+                "stress.MotorState", updates.get(), reads.get(), torn.get()));
+        if (torn.get() > 0) {
+            failures.add("stress.MotorState: read() returned half of one update and half of another " + torn.get() + " times");
+        }
+    }
+
+    /**
+     * One thread posts frames to a MotorMailbox as fast as it can while
+     * another takes them, the way the server's actuator thread does. Every
+     * frame sets both motors the same, so if the targets taken ever differ
+     * the reader has got half of one frame and half of another.
+     *
+     * @throws InterruptedException
+     */
+    private static void stressMotorMailbox() throws InterruptedException {
+        final MotorMailbox mailbox = new MotorMailbox(2);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong posted = new AtomicLong();
+
+        Thread poster = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                long n = 0;
+                while (running.get()) {
+                    float speed = (n & 0xff) / 255f;
+                    mailbox.beginFrame();
+                    mailbox.post(0, false, speed);
+                    mailbox.post(1, false, speed);
+                    mailbox.endFrame();
+                    n++;
+                    //frames come off the network a little apart, not back to back
+                    long next = System.nanoTime() + STRESS_POST_GAP_NANOS;
+                    while (System.nanoTime() - next < 0) {
+                    }
+                }
+                posted.set(n);
+            }
+        }, "StressPoster");
+
+        long[] taken = new long[2];
+        float[] targets = new float[2];
+        long takes = 0, torn = 0;
+        poster.start();
+        long end = System.nanoTime() + STRESS_NANOS;
+        while (System.nanoTime() - end < 0) {
+            if (!mailbox.take(taken)) {
+                continue;
+            }
+            for (int i = 0; i < taken.length; i++) {
+                if (taken[i] != MotorMailbox.NOTHING) {
+                    targets[i] = MotorMailbox.getSpeed(taken[i]);
+                }
+            }
+            if (targets[0] != targets[1]) {
+                torn++;
+            }
+            takes++;
+        }
+        running.set(false);
+        poster.join();
+        System.out.println(String.format("%-32s %d frames posted, %d taken, %d torn, %d coalesced",
+                "stress.MotorMailbox", posted.get(), takes, torn, mailbox.getCoalesced()));
+        if (torn > 0) {
+            failures.add("stress.MotorMailbox: took targets from different frames " + torn + " times");
+        }
+    }
+
+    private static boolean contains(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void measure(Benchmark benchmark) throws Exception {
+        //work out how many ops fill an iteration
+        long ops = 1;
+        long elapsed;
+        do {
+            ops *= 2;
+            long start = System.nanoTime();
+            benchmark.run(ops);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS / 10);
+        ops = Math.max(1, ops * ITERATION_NANOS / Math.max(1, elapsed));
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            benchmark.run(ops);
+        }
+
+        double total = 0;
+        double best = Double.MAX_VALUE;
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            benchmark.run(ops);
+            double nanosPerOp = (double) (System.nanoTime() - start) / ops;
+            total += nanosPerOp;
+            best = Math.min(best, nanosPerOp);
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format("%-32s %12.1f %12.1f %12s", benchmark.name, total / MEASURED_ITERATIONS, best,
+                allocatedBefore < 0 ? "?" : String.format("%.1f", (double) allocated / (ops * MEASURED_ITERATIONS))));
+        if (benchmark.allocationFree) {
+            if (allocatedBefore < 0) {
+                failures.add(benchmark.name + ": this JVM can't count allocations, so can't check it allocates nothing");
+            } else if (allocated > 0) {
+                failures.add(benchmark.name + ": allocated " + allocated + " bytes over " + ops * MEASURED_ITERATIONS + " ops, should be none");
+            }
+        }
+    }
+
+    //looked up once, getting it allocates
+    private static final java.lang.management.ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @return bytes allocated by this thread so far, or -1 if the JVM won't
+     * say
+     */
+    private static long allocatedBytes() {
+        if (THREAD_BEAN instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREAD_BEAN).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Somewhere to write pins which isn't pi-blaster
+     */
+    private static FileChannel nullChannel() throws IOException {
+        File devNull = new File("/dev/null");
+        if (devNull.exists()) {
+            return new FileOutputStream(devNull).getChannel();
+        }
+        File temp = File.createTempFile("pi-blaster", ".bench");
+        temp.deleteOnExit();
+        return new FileOutputStream(temp).getChannel();
+    }
+
+    private static List<Benchmark> createBenchmarks() throws IOException {
+        List<Benchmark> benchmarks = new ArrayList<>();
+
+        final MotorState motorState = new MotorState(new SyntheticController(), new Properties());
+        benchmarks.add(new Benchmark("MotorState.update", true) {
+
+            @Override
+            void run(long ops) {
+                long total = 0;
+                for (long i = 0; i < ops; i++) {
+                    motorState.update();
+                    total += motorState.getVersion();
+                }
+                sink = total;
+            }
+        });
+
+        final DriveFrame frame = new DriveFrame(2);
+        final WireProtocol wireProtocol = new WireProtocol();
+        final WireProtocol decoder = new WireProtocol();
+        final MotorSnapshot snapshot = new MotorSnapshot(motorState.getNumMotors());
+        benchmarks.add(new Benchmark("MotorState.read") {
+
+            @Override
+            void run(long ops) {
+                long total = 0;
+                for (long i = 0; i < ops; i++) {
+                    motorState.read(snapshot);
+                    total += Float.floatToRawIntBits(snapshot.getSpeed(0));
+                }
+                sink = total;
+            }
+        });
+
+        benchmarks.add(new Benchmark("encode.binary", true) {
+
+            @Override
+            void run(long ops) {
+                long total = 0;
+                for (long i = 0; i < ops; i++) {
+                    frame.setSequence((int) i);
+                    frame.set(0, false, (i & 0xff) / 255f);
+                    frame.set(1, false, -(i & 0xff) / 255f);
+                    total += wireProtocol.encodeDriveFrame(frame).remaining();
+                }
+                sink = total;
+            }
+        });
+        final ByteBuffer encoded = ByteBuffer.allocate(WireProtocol.MAX_FRAME_SIZE);
+        encoded.put(wireProtocol.encodeDriveFrame(frame));
+        encoded.flip();
+        benchmarks.add(new Benchmark("decode.binary", true) {
+
+            @Override
+            void run(long ops) {
+                long total = 0;
+                for (long i = 0; i < ops; i++) {
+                    encoded.position(0);
+                    if (decoder.decode(encoded)) {
+                        total += decoder.getSequence();
+                    }
+                }
+                sink = total;
+            }
+        });
+
+        benchmarks.add(new Benchmark("encode.serialization") {
+
+            @Override
+            void run(long ops) throws IOException {
+                //one long lived stream, like the legacy client
+                ObjectOutputStream out = new ObjectOutputStream(new NullOutputStream());
+                for (long i = 0; i < ops; i++) {
+                    out.writeObject(new MotorCommand(0, false, (i & 0xff) / 255f));
+                    out.writeObject(new MotorCommand(1, false, -(i & 0xff) / 255f));
+                    if ((i & 1023) == 0) {
+                        //otherwise the stream remembers every object ever written
+                        out.reset();
+                    }
+                }
+                out.flush();
+            }
+        });
+        final byte[] serialized = serializeCommands(1024);
+        benchmarks.add(new Benchmark("decode.serialization") {
+
+            @Override
+            void run(long ops) throws Exception {
+                long total = 0;
+                ObjectInputStream in = null;
+                for (long i = 0; i < ops; i++) {
+                    if ((i & 511) == 0) {
+                        //each stream holds 512 pairs of commands
+                        in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+                    }
+                    total += ((MotorCommand) in.readObject()).motor;
+                    total += ((MotorCommand) in.readObject()).motor;
+                }
+                sink = total;
+            }
+        });
+
+        final PrintWriter printWriter = new PrintWriter(new NullOutputStream());
+        benchmarks.add(new Benchmark("setPin.format") {
+
+            @Override
+            void run(long ops) {
+                //what Server.setPin() used to do for every pin of a motor
+                for (long i = 0; i < ops; i++) {
+                    printWriter.println(String.valueOf(17) + "=" + ((i & 1) == 0 ? "1" : "0"));
+                    printWriter.flush();
+                    printWriter.println(String.valueOf(18) + "=" + ((i & 1) == 0 ? "0" : "1"));
+                    printWriter.flush();
+                    printWriter.println(String.format("%d=%.2f", 4, (i & 0xff) / 255f));
+                    printWriter.flush();
+                }
+            }
+        });
+        final PinWriteBatch pinWriteBatch = new PinWriteBatch(new ChannelPinSink(nullChannel()));
+        benchmarks.add(new Benchmark("setPin.batch") {
+
+            @Override
+            void run(long ops) throws IOException {
+                for (long i = 0; i < ops; i++) {
+                    pinWriteBatch.set(17, (i & 1) == 0);
+                    pinWriteBatch.set(18, (i & 1) != 0);
+                    pinWriteBatch.set(4, (i & 0xff) / 255f);
+                    pinWriteBatch.flush();
+                }
+            }
+        });
+
+        final GpioMemBackend gpioMem = new SimulatedGpioBackend(100);
+        benchmarks.add(new Benchmark("setPin.gpiomem") {
+
+            @Override
+            void run(long ops) {
+                //the mapped registers, on a temp file rather than the Pi
+                for (long i = 0; i < ops; i++) {
+                    gpioMem.set(17, (i & 1) == 0);
+                    gpioMem.set(18, (i & 1) != 0);
+                    gpioMem.set(4, (i & 0xff) / 255f);
+                    gpioMem.flush();
+                }
+            }
+        });
+
+        final Actuator actuator = new Actuator(new MotorLayout(new Properties()), new PinWriteBatch(new ChannelPinSink(nullChannel())), false);
+        benchmarks.add(new Benchmark("setMotor.frame") {
+
+            @Override
+            void run(long ops) throws IOException {
+                for (long i = 0; i < ops; i++) {
+                    float speed = ((i & 0xff) - 128) / 128f;
+                    frame.set(0, (i & 0x100) != 0, speed);
+                    frame.set(1, false, -speed);
+                    actuator.setMotors(frame);
+                    actuator.flush();
+                }
+            }
+        });
+
+        return benchmarks;
+    }
+
+    private static byte[] serializeCommands(int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            for (int i = 0; i < count; i++) {
+                out.writeObject(new MotorCommand(i % 2, false, (i & 0xff) / 255f));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Passes one tcp connection through to a server, and can stop passing
+     * anything on in either direction for a while without dropping it
+     */
+    private static class PausableRelay {
+
+        private final ServerSocket listener;
+        private final int serverPort;
+        private final Object pauseLock = new Object();
+        private boolean paused = false;
+        private final List<Socket> sockets = new ArrayList<>();
+
+        PausableRelay(int serverPort) throws IOException {
+            this.serverPort = serverPort;
+            this.listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    accept();
+                }
+            }, "RelayAccept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return this.listener.getLocalPort();
+        }
+
+        void setPaused(boolean paused) {
+            synchronized (pauseLock) {
+                this.paused = paused;
+                pauseLock.notifyAll();
+            }
+        }
+
+        private void accept() {
+            try {
+                Socket client = listener.accept();
+                Socket server = new Socket(InetAddress.getLoopbackAddress(), serverPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                synchronized (sockets) {
+                    sockets.add(client);
+                    sockets.add(server);
+                }
+                forward(client, server, "RelayUp");
+                forward(server, client, "RelayDown");
+            } catch (IOException ex) {
+                //closed
+            }
+        }
+
+        private void forward(final Socket from, final Socket to, String name) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[4096];
+                    try {
+                        int n;
+                        while ((n = from.getInputStream().read(buffer)) >= 0) {
+                            awaitUnpaused();
+                            to.getOutputStream().write(buffer, 0, n);
+                        }
+                    } catch (IOException | InterruptedException ex) {
+                        //closed
+                    }
+                }
+            }, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void awaitUnpaused() throws InterruptedException {
+            synchronized (pauseLock) {
+                while (paused) {
+                    pauseLock.wait();
+                }
+            }
+        }
+
+        void close() throws IOException {
+            listener.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package tankbot;
+
+import java.io.IOException;
+import net.java.games.input.AbstractComponent;
+import net.java.games.input.AbstractController;
+import net.java.games.input.Component;
+import net.java.games.input.Controller;
+import net.java.games.input.Event;
+import net.java.games.input.Rumbler;
+
+/**
+ * A joystick which doesn't exist, for driving MotorState without any
+ * hardware. Every poll moves the stick a little further round a circle and
+ * the throttle up and down, so every code path in the mixing gets used.
+ *
+ * Can also report each poll's moves as events, like a real joystick does, so
+ * it can drive JoystickInput too. That's off by default so it doesn't add to
+ * what's measured when polling.
+ *
+ * @author Luke
+ */
+public class SyntheticController extends AbstractController {
+
+    private static final int STEPS = 360;
+
+    private int step = 0;
+    //next axis to report an event for after a poll
+    private int nextEvent = 0;
+
+    private static class SyntheticComponent extends AbstractComponent {
+
+        private final boolean analog;
+        float value;
+
+        SyntheticComponent(Component.Identifier identifier, boolean analog) {
+            super(identifier.getName(), identifier);
+            this.analog = analog;
+        }
+
+        @Override
+        protected float poll() throws IOException {
+            return value;
+        }
+
+        @Override
+        public boolean isRelative() {
+            return false;
+        }
+
+        @Override
+        public boolean isAnalog() {
+            return analog;
+        }
+    }
+
+    private final SyntheticComponent x, y, rz, slider;
+    private final SyntheticComponent[] axes;
+    private final boolean events;
+
+    public SyntheticController() {
+        this(false);
+    }
+
+    /**
+     * @param events true to report moves as events
+     */
+    public SyntheticController(boolean events) {
+        this(events, new SyntheticComponent[]{
+            new SyntheticComponent(Component.Identifier.Axis.X, true),
+            new SyntheticComponent(Component.Identifier.Axis.Y, true),
+            new SyntheticComponent(Component.Identifier.Axis.RZ, true),
+            new SyntheticComponent(Component.Identifier.Axis.SLIDER, true),
+            new SyntheticComponent(Component.Identifier.Button._0, false),
+            new SyntheticComponent(Component.Identifier.Button._1, false)});
+    }
+
+    private SyntheticController(boolean events, SyntheticComponent[] components) {
+        super("Synthetic joystick", components, new Controller[0], new Rumbler[0]);
+        this.x = components[0];
+        this.y = components[1];
+        this.rz = components[2];
+        this.slider = components[3];
+        this.axes = new SyntheticComponent[]{x, y, rz, slider};
+        this.events = events;
+    }
+
+    @Override
+    public Type getType() {
+        return Controller.Type.STICK;
+    }
+
+    @Override
+    protected void pollDevice() throws IOException {
+        step = (step + 1) % STEPS;
+        double angle = Math.toRadians(step);
+        //go a bit past the edge so the clamping gets used too
+        x.value = (float) (Math.cos(angle) * 1.1);
+        y.value = (float) (Math.sin(angle) * 1.1);
+        rz.value = (float) Math.sin(angle * 2);
+        slider.value = (float) Math.cos(angle * 3);
+        nextEvent = 0;
+    }
+
+    @Override
+    protected boolean getNextDeviceEvent(Event event) throws IOException {
+        if (!events || nextEvent >= axes.length) {
+            return false;
+        }
+        SyntheticComponent axis = axes[nextEvent++];
+        event.set(axis, axis.value, System.nanoTime());
+        return true;
+    }
+}
@@ -0,0 +1,164 @@
+package tankbot;
+
+import java.io.IOException;
+
+/**
+ * Turns the desired state of each motor into the pin states for its
+ * H-bridge, and sends them to the PwmBackend a whole frame at a time.
+ *
+ * Knows nothing about the network, so it can be driven (and benchmarked)
+ * without a client or a Pi. Not thread safe, the caller should hold a lock for
+ * the whole of a frame.
+ *
+ * @author Luke
+ */
+public class Actuator {
+
+    //which GPIO pins on the Pi control which inputs on the H-bridges, indexed by motor
+    private final int[] enablePins, in1Pins, in2Pins;
+    private final int numMotors;
+
+    //sets the pins, a whole frame at a time
+    private final PwmBackend pwmBackend;
+
+    //if true, print every pin as it is set
+    private final boolean debugPins;
+
+    //last state set for each motor
+    private final float[] appliedSpeeds;
+    private final boolean[] appliedBrakes;
+
+    public Actuator(MotorLayout layout, PwmBackend pwmBackend, boolean debugPins) {
+        this.numMotors = layout.getNumMotors();
+        this.enablePins = new int[numMotors];
+        this.in1Pins = new int[numMotors];
+        this.in2Pins = new int[numMotors];
+        for (int i = 0; i < numMotors; i++) {
+            this.enablePins[i] = layout.getEnablePin(i);
+            this.in1Pins[i] = layout.getIn1Pin(i);
+            this.in2Pins[i] = layout.getIn2Pin(i);
+        }
+        this.pwmBackend = pwmBackend;
+        this.debugPins = debugPins;
+        this.appliedSpeeds = new float[numMotors];
+        this.appliedBrakes = new boolean[numMotors];
+    }
+
+    /**
+     * Set the pins for one motor. Nothing is written until flush().
+     *
+     * @param motor
+     * @param brake
+     * @param speed -1 to +1, or the brake strength if braking
+     */
+    public void setMotor(int motor, boolean brake, float speed) {
+        if (motor < 0 || motor >= numMotors) {
+            return;
+        }
+        if (speed >= -1 && speed <= 1) {
+            //valid motor and valid speed
+
+            if (brake) {
+                //set both inputs to ground - still use speed for enable, as we might not be using the full brake
+                setPin(in1Pins[motor], false);
+                setPin(in2Pins[motor], false);
+
+            } else {
+
+                if (speed < 0) {
+                    //going backwards
+                    //set in1 low and in2 high
+                    setPin(in1Pins[motor], false);
+                    setPin(in2Pins[motor], true);
+
+                } else {
+                    //forwards, in1 high and in2 low
+                    setPin(in1Pins[motor], true);
+                    setPin(in2Pins[motor], false);
+                }
+            }
+
+            setPin(enablePins[motor], Math.abs(speed));
+        }
+
+        this.appliedSpeeds[motor] = speed;
+        this.appliedBrakes[motor] = brake;
+    }
+
+    /**
+     * Set the pins for every motor in the frame. Nothing is written until
+     * flush().
+     *
+     * @param frame
+     */
+    public void setMotors(DriveFrame frame) {
+        int n = Math.min(frame.getNumMotors(), numMotors);
+        for (int i = 0; i < n; i++) {
+            setMotor(i, frame.getBrake(i), frame.getSpeed(i));
+        }
+    }
+
+    /**
+     * Set every motor to coast. Nothing is written until flush().
+     */
+    public void stopAll() {
+        for (int i = 0; i < numMotors; i++) {
+            setMotor(i, false, 0);
+        }
+    }
+
+    /**
+     * Write out all the pins set since the last flush
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        this.pwmBackend.flush();
+    }
+
+    /**
+     * Set a pin between 0 and 1
+     *
+     * @param pin
+     * @param value
+     */
+    private void setPin(int pin, float value) {
+        this.pwmBackend.set(pin, value);
+        if (debugPins) {
+            System.out.println(String.format("%d=%.2f", pin, value));
+        }
+    }
+
+    /**
+     * Set a pin to zero or one
+     *
+     * @param pin
+     * @param high
+     */
+    private void setPin(int pin, boolean high) {
+        this.pwmBackend.set(pin, high);
+        if (debugPins) {
+            System.out.println(String.valueOf(pin) + "=" + (high ? "1" : "0"));
+        }
+    }
+
+    public int getNumMotors() {
+        return this.numMotors;
+    }
+
+    /**
+     * @param motor
+     * @return last speed set for the motor
+     */
+    public float getSpeed(int motor) {
+        return this.appliedSpeeds[motor];
+    }
+
+    /**
+     * @param motor
+     * @return last brake state set for the motor
+     */
+    public boolean getBrake(int motor) {
+        return this.appliedBrakes[motor];
+    }
+}
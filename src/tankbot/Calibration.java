@@ -0,0 +1,246 @@
+package tankbot;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+/**
+ * How the stick and throttle map to motor speeds, worked out once from the
+ * config into lookup tables so update() doesn't have to do it every time.
+ *
+ * Each table covers -1 to +1 in 2 * calibrationSteps steps (256 each way by
+ * default, finer than is worth sending). Looking a value up rounds it to the
+ * nearest step and clamps it to the ends of the table, so clamping comes for
+ * free.
+ *
+ * Curves are given as comma separated input:output points for 0 to 1, joined
+ * up with straight lines, starting from 0:0 and staying level after the last
+ * point. Negative values get the same shape, mirrored. A single point is just
+ * a scale, so "1:0.95" takes 5% off. The curves in the config are:
+ *
+ * stickCurve: the stick's response, after the deadzone (deadzone, default
+ * 0.1). Defaults to straight.
+ *
+ * motorNForwards and motorNBackwards: each motor's response in each
+ * direction, so they can be trimmed to match each other. Defaults to
+ * straight.
+ *
+ * The throttle gets a table too, from its position to the max speed.
+ *
+ * @author Luke
+ */
+public class Calibration {
+
+    private static final String STRAIGHT = "1:1";
+
+    //steps either side of 0
+    private final int steps;
+    private final int tableSize;
+    private final float[] xTable, yTable, zTable, throttleTable;
+    //every motor's table, one after the other
+    private final float[] motorTables;
+    private final int numMotors;
+
+    /**
+     * @param properties
+     * @param numMotors
+     * @param absoluteMaxSpeed the max speed at full throttle
+     */
+    public Calibration(Properties properties, int numMotors, float absoluteMaxSpeed) {
+        this.steps = Integer.parseInt(properties.getProperty("calibrationSteps", "256"));
+        if (steps < 1) {
+            throw new IllegalArgumentException("calibrationSteps must be at least 1");
+        }
+        this.tableSize = 2 * steps + 1;
+        this.numMotors = numMotors;
+
+        float deadZone = Float.parseFloat(properties.getProperty("deadzone", "0.1"));
+        Curve stick = Curve.load(properties, "stickCurve", STRAIGHT);
+        //linux/joydev needs to be true, win7
+        boolean invertX = Boolean.parseBoolean(properties.getProperty("invertX", "false"));
+        //needs to be true on both
+        boolean invertY = Boolean.parseBoolean(properties.getProperty("invertY", "true"));
+        //false on both
+        boolean invertZ = Boolean.parseBoolean(properties.getProperty("invertZ", "false"));
+
+        this.xTable = new float[tableSize];
+        this.yTable = new float[tableSize];
+        this.zTable = new float[tableSize];
+        this.throttleTable = new float[tableSize];
+        this.motorTables = new float[numMotors * tableSize];
+        Curve[] forwards = new Curve[numMotors];
+        Curve[] backwards = new Curve[numMotors];
+        for (int m = 0; m < numMotors; m++) {
+            forwards[m] = Curve.load(properties, "motor" + m + "Forwards", STRAIGHT);
+            backwards[m] = Curve.load(properties, "motor" + m + "Backwards", STRAIGHT);
+        }
+
+        for (int i = 0; i < tableSize; i++) {
+            float v = valueAt(i);
+            float magnitude = Math.abs(v);
+            //setting my own deadzone because I don't think MS's win7 drivers
+            //allow this to be done for the sidewinder anymore
+            float shaped = magnitude < deadZone ? 0 : Math.signum(v) * stick.apply(magnitude);
+            xTable[i] = invertX ? -shaped : shaped;
+            yTable[i] = invertY ? -shaped : shaped;
+            zTable[i] = invertZ ? -shaped : shaped;
+            //um, not sure why divided by 2
+            throttleTable[i] = (1 - v) * absoluteMaxSpeed / 2;
+            for (int m = 0; m < numMotors; m++) {
+                motorTables[m * tableSize + i] = v > 0 ? forwards[m].apply(magnitude) : v < 0 ? -backwards[m].apply(magnitude) : 0;
+            }
+        }
+    }
+
+    /**
+     * @param i
+     * @return the value a table index stands for
+     */
+    private float valueAt(int i) {
+        return (float) (i - steps) / steps;
+    }
+
+    /**
+     * @param v
+     * @return nearest table index to the value, clamped to the table
+     */
+    private int indexOf(float v) {
+        int i = Math.round(v * steps) + steps;
+        return Math.max(0, Math.min(tableSize - 1, i));
+    }
+
+    /**
+     * @param x raw stick x
+     * @return x after inverting, the deadzone and the stick curve
+     */
+    public float stickX(float x) {
+        return xTable[indexOf(x)];
+    }
+
+    /**
+     * @param y raw stick y
+     * @return y after inverting, the deadzone and the stick curve
+     */
+    public float stickY(float y) {
+        return yTable[indexOf(y)];
+    }
+
+    /**
+     * @param z raw stick twist
+     * @return z after inverting, the deadzone and the stick curve
+     */
+    public float stickZ(float z) {
+        return zTable[indexOf(z)];
+    }
+
+    /**
+     * @param throttle raw throttle position
+     * @return max speed for it
+     */
+    public float maxSpeed(float throttle) {
+        return throttleTable[indexOf(throttle)];
+    }
+
+    /**
+     * @param motor
+     * @param speed wanted speed, clamped to -1 to +1
+     * @return speed to send the motor, after its curve for that direction
+     */
+    public float motor(int motor, float speed) {
+        return motorTables[motor * tableSize + indexOf(speed)];
+    }
+
+    public int getNumMotors() {
+        return numMotors;
+    }
+
+    /**
+     * A response curve, joining up points with straight lines
+     */
+    static final class Curve {
+
+        private final float[] inputs;
+        private final float[] outputs;
+
+        private Curve(float[] inputs, float[] outputs) {
+            this.inputs = inputs;
+            this.outputs = outputs;
+        }
+
+        /**
+         * Load a curve from the config, using the default (with a warning)
+         * if it doesn't parse
+         *
+         * @param properties
+         * @param key
+         * @param defaultCurve
+         * @return
+         */
+        static Curve load(Properties properties, String key, String defaultCurve) {
+            String value = properties.getProperty(key, defaultCurve);
+            try {
+                return parse(value);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Ignoring " + key + ": " + e.getMessage());
+                return parse(defaultCurve);
+            }
+        }
+
+        /**
+         * @param curve eg "0.1:0.2,1:1"
+         * @return
+         */
+        static Curve parse(String curve) {
+            String[] points = curve.trim().split("\\s*,\\s*");
+            float[][] parsed = new float[points.length][];
+            for (int i = 0; i < points.length; i++) {
+                String[] parts = points[i].split(":");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("expected input:output, got \"" + points[i] + "\"");
+                }
+                float in, out;
+                try {
+                    in = Float.parseFloat(parts[0].trim());
+                    out = Float.parseFloat(parts[1].trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("not a number in \"" + points[i] + "\"");
+                }
+                if (!(in > 0 && in <= 1)) {
+                    throw new IllegalArgumentException("inputs must be above 0 and at most 1, got " + in);
+                }
+                parsed[i] = new float[]{in, out};
+            }
+            Arrays.sort(parsed, new Comparator<float[]>() {
+
+                @Override
+                public int compare(float[] a, float[] b) {
+                    return Float.compare(a[0], b[0]);
+                }
+            });
+            float[] inputs = new float[points.length + 1];
+            float[] outputs = new float[points.length + 1];
+            for (int i = 0; i < parsed.length; i++) {
+                if (i > 0 && parsed[i][0] == parsed[i - 1][0]) {
+                    throw new IllegalArgumentException("input " + parsed[i][0] + " given twice");
+                }
+                inputs[i + 1] = parsed[i][0];
+                outputs[i + 1] = parsed[i][1];
+            }
+            return new Curve(inputs, outputs);
+        }
+
+        /**
+         * @param v 0 to 1
+         * @return
+         */
+        float apply(float v) {
+            for (int i = 1; i < inputs.length; i++) {
+                if (v <= inputs[i]) {
+                    float t = (v - inputs[i - 1]) / (inputs[i] - inputs[i - 1]);
+                    return outputs[i - 1] + t * (outputs[i] - outputs[i - 1]);
+                }
+            }
+            return outputs[outputs.length - 1];
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package tankbot;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes pin states to a channel, usually a file: /dev/pi-blaster (which is
+ * a FIFO), another FIFO, or a plain file to see what would have been sent.
+ *
+ * @author Luke
+ */
+public class ChannelPinSink implements PinSink {
+
+    private final WritableByteChannel channel;
+
+    public ChannelPinSink(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Open a file for writing. Opening a FIFO (like pi-blaster) waits until
+     * something is reading the other end.
+     *
+     * @param file
+     * @throws FileNotFoundException
+     */
+    public ChannelPinSink(File file) throws FileNotFoundException {
+        this(new FileOutputStream(file).getChannel());
+    }
+
+    @Override
+    public void write(ByteBuffer lines) throws IOException {
+        while (lines.hasRemaining()) {
+            channel.write(lines);
+        }
+    }
+}
@@ -2,182 +2,629 @@ package tankbot;
 
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import net.java.games.input.Component;
 import net.java.games.input.Controller;
-import net.java.games.input.ControllerEnvironment;
 
 /**
+ * Reads the joystick and sends the motor state to the server.
+ *
+ * The joystick is found in the background by a ControllerScanner once
+ * started, and can be unplugged and plugged back in (or swapped for another)
+ * while running. Until there is one the keyboard still works.
+ *
+ * Anything the server sends back (its role for us and its Telemetry) is read
+ * on a thread of its own, so sending never waits on it.
+ *
+ * The server is pinged pingRate times a second (0 for never), and its pings
+ * are answered, so both ends keep track of the round trip time and how far
+ * apart their clocks are (see getLinkTiming()).
  *
  * @author Luke
  */
 public class Client {
 
     Properties properties;
-    private Controller joystick;
-    private Socket socket;
-    private ObjectOutputStream out;
-    //for updating motor state from joystick
-    private final Timer motorStateTimer;
-    //how often to poll for new motor state to send to pi
-    private final static long MOTOR_STATE_UPDATE_PERIOD_MS = 100;
+    private volatile Controller joystick;
+    //finds the joystick, and finds it again if it's unplugged
+    private final ControllerScanner controllerScanner;
+    //connects (and reconnects) in the background
+    private final ConnectionManager connectionManager;
+    private volatile SocketChannel channel;
+    private volatile ObjectOutputStream out;
+    //if true, drive frames go over udp and the tcp socket just holds the session open
+    private final boolean useDatagrams;
+    private final int udpPort;
+    private volatile DatagramChannel datagramChannel;
+    //if true, send java serialized MotorCommands rather than using the binary wire protocol
+    private final boolean legacySerialization;
+    private final WireProtocol wireProtocol = new WireProtocol();
+    //for the odd frame sent from outside the control loop
+    private final WireProtocol controlProtocol = new WireProtocol();
+    //so frames from different threads don't get interleaved on the socket
+    private final Object writeLock = new Object();
+    //if true, ask to become the driver on connecting, even if someone else is driving
+    private final boolean takeOver;
+    private int sequence = 0;
+    private final DriveFrame driveFrame;
+    //what was in the last drive frame sent, so we only send when something changes
+    private final float[] sentSpeeds;
+    private final boolean[] sentBrakes;
+    //the control loop's copy of the motor state, read once per send
+    private final MotorSnapshot snapshot;
+    private volatile boolean forceSend = true;
+    private long lastSendNanos;
+    //a change in speed smaller than this isn't worth sending
+    private final float sendEpsilon;
+    //how long to go without sending anything before sending a heartbeat
+    private final long heartbeatPeriodNanos;
+    //reads the joystick and sends the latest motor state to the pi
+    private final ControlLoop controlLoop;
+    //how often (Hz) to poll for new motor state to send to pi, if not set in the config
+    private final static double DEFAULT_CONTROL_RATE = 10;
+    //how often (Hz) to print control loop stats in debug mode
+    private final static double DEBUG_STATUS_RATE = 0.2;
     private final MotorState motorState;
+    //reads joystick events as they happen, null if polling it from the control loop instead
+    private volatile JoystickInput joystickInput;
+    private final boolean inputEvents;
+    private final float inputEpsilon;
+    private final long inputPollMicros;
+    //capture to send for drive frames with a change in, only written by the control loop
+    private volatile long inputLatencySamples = 0;
+    private volatile long inputLatencyTotalMicros = 0;
+    private volatile long inputLatencyMaxMicros = 0;
 
-    //semi abstracted so more motors could be added later (eg for turret)
-    private final static int NUM_MOTORS = 2;
+    //how many motors the config says there are, all sent in every drive frame
+    private final int numMotors;
 
-    private boolean connected = false;
+    //maneuvers from the config (maneuver1 to maneuver9), null where there isn't one
+    private final Maneuver[] maneuvers = new Maneuver[10];
+
+    private volatile boolean connected = false;
+    //what the server last told us, null until it does
+    private volatile Telemetry telemetry;
+    private volatile boolean driving = false;
+    //round trip and clock offset to the server, a fresh one for every connection
+    private volatile LinkTiming linkTiming = new LinkTiming();
+    private int pingSequence = 0;
+    private final static double DEFAULT_PING_RATE = 2;
 
     Client(Properties properties, boolean debug) {
 
         this.properties = properties;
+        this.legacySerialization = Boolean.parseBoolean(properties.getProperty("legacySerialization", "false"));
+        this.useDatagrams = properties.getProperty("transport", "tcp").equalsIgnoreCase("udp") && !this.legacySerialization;
+        //-1 means use the same port as tcp
+        this.udpPort = Integer.parseInt(properties.getProperty("udpPort", "-1"));
+        this.connectionManager = new ConnectionManager(
+                Long.parseLong(properties.getProperty("connectTimeoutMs", "2000")),
+                Long.parseLong(properties.getProperty("reconnectMinMs", "250")),
+                Long.parseLong(properties.getProperty("reconnectMaxMs", "10000")));
+        this.connectionManager.addListener(new ConnectionManager.Listener() {
 
-        this.joystick = null;
-        //crudely find a joystick
-        Controller[] controllers = ControllerEnvironment.getDefaultEnvironment().getControllers();
+            @Override
+            public void connectionStateChanged(ConnectionManager.State state, String host, int port) {
+                Client.this.connectionStateChanged(state, host, port);
+            }
+        });
+        this.takeOver = Boolean.parseBoolean(properties.getProperty("takeOver", "false"));
+        this.sendEpsilon = Float.parseFloat(properties.getProperty("sendEpsilon", "0.01"));
+        this.heartbeatPeriodNanos = Math.round(1e9 / WireProtocol.getHeartbeatRate(properties));
 
-        for (Controller c : controllers) {
-            System.out.println(c.getName());
-            if (c.getType().equals(Controller.Type.STICK) || c.getType().equals(Controller.Type.GAMEPAD)) {
-                joystick = c;
-                System.out.println("Found joystick: " + joystick.getName());
+        for (int i = 1; i < maneuvers.length; i++) {
+            String script = properties.getProperty("maneuver" + i);
+            if (script != null) {
+                try {
+                    maneuvers[i] = Maneuver.parse(script);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Ignoring maneuver" + i + ": " + e.getMessage());
+                }
             }
         }
 
-        this.motorState = new MotorState(this.joystick, this.properties);
+        this.inputEvents = Boolean.parseBoolean(properties.getProperty("inputEvents", "true"));
+        this.inputEpsilon = Float.parseFloat(properties.getProperty("inputEpsilon", "0.01"));
+        this.inputPollMicros = Long.parseLong(properties.getProperty("inputPollMicros", "1000"));
+        //looked for in the background once started, so nothing waits for it
+        this.controllerScanner = new ControllerScanner(
+                Long.parseLong(properties.getProperty("rescanMinMs", "2000")),
+                Long.parseLong(properties.getProperty("rescanMaxMs", "60000")),
+                debug);
+        this.controllerScanner.addListener(new ControllerScanner.Listener() {
+
+            @Override
+            public void joystickChanged(Controller joystick) {
+                Client.this.joystickChanged(joystick);
+            }
+        });
+
+        this.motorState = new MotorState(null, this.properties);
+        this.numMotors = this.motorState.getNumMotors();
+        this.driveFrame = new DriveFrame(numMotors);
+        this.sentSpeeds = new float[numMotors];
+        this.sentBrakes = new boolean[numMotors];
+        this.snapshot = new MotorSnapshot(numMotors);
 
-        this.motorStateTimer = new Timer("MotorStateTimer");
-        this.motorStateTimer.scheduleAtFixedRate(new TimerTask() {
+        this.controlLoop = new ControlLoop("ControlLoop", Double.parseDouble(properties.getProperty("controlRate", String.valueOf(DEFAULT_CONTROL_RATE))));
+        //the pipeline, in order, every tick
+        this.controlLoop.addStage(new Runnable() {
+
+            @Override
+            public void run() {
+                motorState.update();
+            }
+        });
+        this.controlLoop.addStage(new Runnable() {
 
             @Override
             public void run() {
                 sendLatestMotorState();
             }
-        }, (long) 0, MOTOR_STATE_UPDATE_PERIOD_MS);
+        });
+        double pingRate = Double.parseDouble(properties.getProperty("pingRate", String.valueOf(DEFAULT_PING_RATE)));
+        if (pingRate > 0) {
+            this.controlLoop.addStage(new Runnable() {
 
+                @Override
+                public void run() {
+                    sendPing();
+                }
+            }, pingRate);
+        }
         if (debug) {
-            for (Controller controller : controllers) {
-                /* Get the name of the controller */
-                System.out.println(controller.getName());
-                System.out.println("Type: " + controller.getType().toString());
-                /* Get this controllers components (buttons and axis) */
-                Component[] components = controller.getComponents();
-                System.out.println("Component Count: " + components.length);
-                for (int j = 0; j < components.length; j++) {
-
-                    /* Get the components name */
-                    System.out.println("Component " + j + ": " + components[j].getName());
-
-                    System.out.println("    Identifier: " + components[j].getIdentifier().getName());
-                    System.out.print("    ComponentType: ");
-                    if (components[j].isRelative()) {
-                        System.out.println("Relative");
-                    } else {
-                        System.out.println("Absolute");
-                    }
-                    if (components[j].isAnalog()) {
-                        System.out.println(" Analog");
-                    } else {
-                        System.out.println(" Digital");
-                    }
+            this.controlLoop.addStage(new Runnable() {
+
+                @Override
+                public void run() {
+                    System.out.println(controlLoop.getStatus());
+                    System.out.println("Link: " + linkTiming.getSummary());
+                    System.out.println("Input: " + getInputLatencySummary());
                 }
-            }
+            }, DEBUG_STATUS_RATE);
         }
 
     }
 
     /**
-     * Connect (or reconnect) to an IP and port
-     * Synchronized so if we try to connect to somewhere that doesn't exist, we
-     * don't try and connect somewhere else in parallel
-     * 
-     * TODO refactor so if a new connection attempt is made the old one can be aborted, rather than waiting for it to time out
+     * Connect (or reconnect) to an IP and port. Returns straight away, the
+     * connection manager does the connecting (and keeps reconnecting) in the
+     * background, abandoning any attempt already in progress.
      *
      * @param serverIp
      * @param _port
      */
-    public synchronized void connectTo(String serverIp, int _port) {
-        System.out.println("Attempting to connect to " + serverIp + ":" + _port);
-        if (socket != null) {
+    public void connectTo(String serverIp, int _port) {
+        this.connectionManager.connectTo(serverIp, _port);
+    }
+
+    /**
+     * Find out when the connection comes and goes. Listeners are called on
+     * the connection manager's thread.
+     *
+     * @param listener
+     */
+    public void addConnectionListener(ConnectionManager.Listener listener) {
+        this.connectionManager.addListener(listener);
+    }
+
+    /**
+     * Set up (or tear down) everything that hangs off the connection
+     */
+    private void connectionStateChanged(ConnectionManager.State state, String serverIp, int _port) {
+        if (state != ConnectionManager.State.CONNECTED) {
+            if (this.connected) {
+                this.connected = false;
+                this.channel = null;
+                this.telemetry = null;
+                this.driving = false;
+                closeDatagramChannel();
+            }
+            return;
+        }
+        SocketChannel newChannel = this.connectionManager.getChannel();
+        if (newChannel == null) {
+            //already gone again
+            return;
+        }
+        try {
+            if (this.legacySerialization) {
+                out = new ObjectOutputStream(Channels.newOutputStream(newChannel));
+            }
+            if (this.useDatagrams) {
+                int datagramPort = this.udpPort < 0 ? _port : this.udpPort;
+                datagramChannel = DatagramChannel.open();
+                datagramChannel.connect(new InetSocketAddress(newChannel.socket().getInetAddress(), datagramPort));
+                System.out.println("Sending drive frames as datagrams to port " + datagramPort);
+            }
+            this.linkTiming = new LinkTiming();
+            this.channel = newChannel;
+            //new server, it needs to be told everything
+            this.forceSend = true;
+            this.connected = true;
+            if (!this.legacySerialization) {
+                startReader(newChannel);
+            }
+            if (this.takeOver && !this.legacySerialization) {
+                requestTakeover();
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't get I/O for the connection: " + e.getMessage());
+            this.connectionManager.connectionLost(newChannel);
+        }
+    }
+
+    private void closeDatagramChannel() {
+        if (datagramChannel != null) {
             try {
-                socket.close();
+                datagramChannel.close();
             } catch (IOException ex) {
                 Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
             }
+            datagramChannel = null;
         }
-        socket = GetSocket(serverIp, _port);
-        if (socket != null) {
-            try {
+    }
+
+    /**
+     * The connection has died under us, let the connection manager start
+     * trying to get it back
+     */
+    private void lostConnection(SocketChannel lost) {
+        System.out.println("Lost connection to " + lost.socket().toString());
+        this.connected = false;
+        this.connectionManager.connectionLost(lost);
+    }
 
-                out = new ObjectOutputStream(socket.getOutputStream());
-                System.out.println("Connected to " + serverIp + ":" + _port);
-                this.connected = true;
+    /**
+     * Start a thread reading whatever the server sends back, until the
+     * connection goes
+     *
+     * @param readChannel
+     */
+    private void startReader(final SocketChannel readChannel) {
+        Thread reader = new Thread(new Runnable() {
 
-            } catch (IOException e) {
-                System.err.println("Couldn't get I/O for the connection: " + e.getMessage());
+            @Override
+            public void run() {
+                readFromServer(readChannel);
             }
-        }
+        }, "ServerReader");
+        reader.setDaemon(true);
+        reader.start();
     }
 
-    public static Socket GetSocket(String host, int port) {
-        InetAddress address = null;
-        Socket _socket = null;
-
+    /**
+     * Read frames from the server until the connection goes. Never touches
+     * the write side, so the control loop is never held up by it.
+     *
+     * @param readChannel
+     */
+    private void readFromServer(SocketChannel readChannel) {
+        //one each, as an old reader might still be finishing when a new connection starts
+        WireProtocol readProtocol = new WireProtocol();
+        WireProtocol replyProtocol = new WireProtocol();
+        LinkTiming timing = this.linkTiming;
+        ByteBuffer in = ByteBuffer.allocate(WireProtocol.MAX_FRAME_SIZE * 4);
         try {
-            address = InetAddress.getByName(host);
-
-        } catch (UnknownHostException e) {
-            System.out.println("Failed to find " + host + " " + e.getMessage());
-        }
-        if (address != null) {
-            try {
-                _socket = new Socket(address, port);
-//                _socket = new Socket();
-//                _socket.setSoTimeout(100);
-//                _socket.connect(new InetSocketAddress(address, port));
-//                _socket.setSoTimeout(0);
-            } catch (IOException e) {
-                System.out.println("Failed to connect to " + host + ":" + port + " " + e.getMessage());
+            while (true) {
+                if (readChannel.read(in) < 0) {
+                    throw new IOException("End of stream");
+                }
+                long receivedMicros = Clock.nowMicros();
+                in.flip();
+                int length;
+                while ((length = WireProtocol.frameLength(in)) > 0) {
+                    if (length > WireProtocol.MAX_FRAME_SIZE) {
+                        throw new IOException("Frame too large (" + length + " bytes)");
+                    }
+                    if (length > in.remaining()) {
+                        //wait for the rest of it
+                        break;
+                    }
+                    if (readProtocol.decode(in)) {
+                        received(readProtocol, receivedMicros, replyProtocol, timing);
+                    } else {
+                        System.err.println("Data received in unknown format");
+                    }
+                }
+                in.compact();
+            }
+        } catch (IOException ex) {
+            if (readChannel == this.channel) {
+                lostConnection(readChannel);
             }
+        }
+    }
 
+    /**
+     * Deal with a frame from the server, on the reader thread
+     *
+     * @param frame
+     * @param receivedMicros
+     * @param replyProtocol for answering pings
+     * @param timing for this connection
+     */
+    private void received(WireProtocol frame, long receivedMicros, WireProtocol replyProtocol, LinkTiming timing) {
+        switch (frame.getType()) {
+            case WireProtocol.TYPE_PING:
+                writeFrame(replyProtocol.encodePong(frame.getSequence(), frame.getOriginMicros(), receivedMicros, Clock.nowMicros()));
+                break;
+            case WireProtocol.TYPE_PONG:
+                timing.record(frame.getOriginMicros(), frame.getReceivedMicros(), frame.getTransmitMicros(), receivedMicros);
+                break;
+            case WireProtocol.TYPE_ROLE:
+                this.driving = frame.getRole() == WireProtocol.ROLE_DRIVER;
+                System.out.println(this.driving ? "Driving" : "Observing, someone else is driving");
+                break;
+            case WireProtocol.TYPE_TELEMETRY:
+                Telemetry latest = new Telemetry(frame.getTelemetry());
+                latest.setReceivedMicros(receivedMicros);
+                this.telemetry = latest;
+                if (latest.isWatchdogTripped() && latest.isDriver()) {
+                    //the server stopped the motors while it couldn't hear us,
+                    //and heartbeats won't start them again, so send everything
+                    this.forceSend = true;
+                    this.controlLoop.wakeup();
+                }
+                break;
         }
-        return _socket;
     }
 
     private void sendObject(Object o) {
+        SocketChannel current = this.channel;
         try {
-            if (socket == null) {
-                System.out.println("help");
-            }
             if (o == null) {
                 System.out.println("help2");
             }
-            if (out != null && !socket.isOutputShutdown()) {
+            if (out != null && current != null) {
                 out.writeObject(o);
             }
         } catch (IOException ex) {
-            System.out.println("Lost connection to " + this.socket.toString());
-            this.connected = false;
+            lostConnection(current);
+        }
+    }
+
+    /**
+     * Send the state of every motor in a single frame, so the server applies
+     * them all at once
+     *
+     * @param frame
+     */
+    private void sendDriveFrame(DriveFrame frame) {
+        if (this.useDatagrams) {
+            try {
+                if (datagramChannel != null) {
+                    datagramChannel.write(wireProtocol.encodeDriveFrame(frame));
+                }
+            } catch (IOException ex) {
+                //probably nothing listening yet, the next frame will supersede this one anyway
+                System.out.println("Failed to send datagram: " + ex.getMessage());
+            }
+            return;
+        }
+        writeFrame(wireProtocol.encodeDriveFrame(frame));
+    }
+
+    /**
+     * Let the server know we're still here, without telling it anything new
+     */
+    private void sendHeartbeat() {
+        if (this.useDatagrams) {
+            //a lost datagram with the last change in it would never be resent
+            //otherwise, so repeat the whole frame. It's hardly any bigger.
+            //Keeps the capture time it was sent with, it's nothing new.
+            driveFrame.setSequence(sequence++);
+            sendDriveFrame(driveFrame);
+            return;
         }
+        writeFrame(wireProtocol.encodeHeartbeat(sequence++));
     }
 
+    /**
+     * Write an encoded frame to the tcp socket
+     *
+     * @param buffer
+     */
+    private void writeFrame(ByteBuffer buffer) {
+        SocketChannel current = this.channel;
+        if (current == null) {
+            return;
+        }
+        try {
+            synchronized (writeLock) {
+                while (buffer.hasRemaining()) {
+                    current.write(buffer);
+                }
+            }
+        } catch (IOException ex) {
+            lostConnection(current);
+        }
+    }
+
+    /**
+     * Ping the server, so we know how the link is doing
+     */
+    private void sendPing() {
+        if (!this.connected || this.legacySerialization) {
+            return;
+        }
+        synchronized (controlProtocol) {
+            writeFrame(controlProtocol.encodePing(pingSequence++, Clock.nowMicros()));
+        }
+    }
+
+    /**
+     * Ask the server to let us drive, even if another client is driving
+     * already
+     */
+    public void requestTakeover() {
+        synchronized (controlProtocol) {
+            writeFrame(controlProtocol.encodeTakeover());
+        }
+        //whatever the old driver asked for has been stopped, so send our state again
+        this.forceSend = true;
+    }
+
+    /**
+     * Have the server run one of the maneuvers from the config (maneuver1 to
+     * maneuver9). Moving the stick stops it.
+     *
+     * @param number
+     * @return false if there's no such maneuver
+     */
+    public boolean runManeuver(int number) {
+        if (number < 0 || number >= maneuvers.length || maneuvers[number] == null) {
+            return false;
+        }
+        sendManeuver(maneuvers[number]);
+        return true;
+    }
+
+    /**
+     * Have the server run a maneuver by itself. It carries on until it's
+     * done, or until we send anything different from what we were sending
+     * when it started.
+     *
+     * @param maneuver
+     */
+    public void sendManeuver(Maneuver maneuver) {
+        if (this.legacySerialization) {
+            System.out.println("Maneuvers need the binary wire protocol");
+            return;
+        }
+        synchronized (controlProtocol) {
+            maneuver.setSequence(sequence);
+            writeFrame(controlProtocol.encodeManeuver(maneuver));
+        }
+    }
+
+    /**
+     * True if any motor has changed enough since the last drive frame sent to
+     * be worth sending again
+     */
+    private boolean motorStateChanged() {
+        for (int i = 0; i < numMotors; i++) {
+            if (this.snapshot.getBrake(i) != sentBrakes[i]
+                    || Math.abs(this.snapshot.getSpeed(i) - sentSpeeds[i]) > sendEpsilon) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send the motor state as of the last MotorState.update() if it has
+     * changed, otherwise send a heartbeat every so often
+     */
     public void sendLatestMotorState() {
-        this.motorState.update();
         if (this.connected) {
-            for (int i = 0; i < NUM_MOTORS; i++) {
-                sendObject(this.motorState.getMotorCommand(i));
+            //all from the same update, so the motors can't be sent out of step
+            this.motorState.read(this.snapshot);
+            if (this.legacySerialization) {
+                //old servers only understand one motor at a time
+                for (int i = 0; i < numMotors; i++) {
+                    sendObject(new MotorCommand(i, this.snapshot.getBrake(i), this.snapshot.getSpeed(i)));
+                }
+                return;
+            }
+            long now = System.nanoTime();
+            if (this.forceSend || motorStateChanged()) {
+                for (int i = 0; i < numMotors; i++) {
+                    sentBrakes[i] = this.snapshot.getBrake(i);
+                    sentSpeeds[i] = this.snapshot.getSpeed(i);
+                    driveFrame.set(i, sentBrakes[i], sentSpeeds[i]);
+                }
+                driveFrame.setSequence(sequence++);
+                driveFrame.setCaptureMicros(this.snapshot.getCaptureMicros());
+                sendDriveFrame(driveFrame);
+                recordInputLatency(Clock.nowMicros() - this.snapshot.getCaptureMicros());
+                this.forceSend = false;
+                this.lastSendNanos = now;
+            } else if (now - this.lastSendNanos >= this.heartbeatPeriodNanos) {
+                sendHeartbeat();
+                this.lastSendNanos = now;
             }
         }
     }
 
+    private void recordInputLatency(long micros) {
+        inputLatencySamples++;
+        inputLatencyTotalMicros += micros;
+        if (micros > inputLatencyMaxMicros) {
+            inputLatencyMaxMicros = micros;
+        }
+    }
+
+    /**
+     * How long changes take from being captured to being sent. With
+     * JoystickInput that's from the joystick event, otherwise from the
+     * control loop tick which polled the joystick.
+     *
+     * @return one line summary
+     */
+    public String getInputLatencySummary() {
+        long n = inputLatencySamples;
+        JoystickInput input = joystickInput;
+        String events = input == null ? "polled" : input.getEvents() + " events " + input.getChanges() + " changes";
+        if (n == 0) {
+            return events + ", nothing sent yet";
+        }
+        return String.format("%s, capture to send mean %dus max %dus (%d sent)",
+                events, inputLatencyTotalMicros / n, inputLatencyMaxMicros, n);
+    }
+
+    /**
+     * Start using a different joystick, or stop using one. Called on the
+     * scanner thread.
+     *
+     * @param joystick null if there isn't one any more
+     */
+    private void joystickChanged(final Controller joystick) {
+        JoystickInput old = this.joystickInput;
+        if (old != null) {
+            old.stop();
+        }
+        JoystickInput input = null;
+        Runnable lostListener = null;
+        if (joystick != null) {
+            //whichever thread polls the joystick tells the scanner when it goes
+            lostListener = new Runnable() {
+
+                @Override
+                public void run() {
+                    controllerScanner.joystickLost(joystick);
+                }
+            };
+        }
+        if (joystick != null && this.inputEvents) {
+            input = new JoystickInput(joystick, this.inputEpsilon, this.inputPollMicros, new Runnable() {
+
+                @Override
+                public void run() {
+                    //work out and send the change now rather than at the next tick
+                    controlLoop.wakeup();
+                }
+            }, lostListener);
+        }
+        this.joystick = joystick;
+        this.joystickInput = input;
+        this.motorState.setJoystick(joystick, input, lostListener);
+        if (input != null) {
+            input.start();
+        }
+        //stop straight away if it's gone, rather than at the next tick
+        this.controlLoop.wakeup();
+    }
+
+    /**
+     * @return the joystick in use, or null if there isn't one (yet)
+     */
     public Controller getJoystick() {
         return this.joystick;
     }
@@ -185,4 +632,45 @@ public class Client {
     public MotorState getMotorState() {
         return this.motorState;
     }
+
+    /**
+     * @return the newest telemetry from the server, or null if we're not
+     * connected or haven't had any yet. Never changed once returned.
+     */
+    public Telemetry getTelemetry() {
+        return this.telemetry;
+    }
+
+    /**
+     * @return round trip time and clock offset to the server, as of the
+     * current connection
+     */
+    public LinkTiming getLinkTiming() {
+        return this.linkTiming;
+    }
+
+    /**
+     * @return true if the server has said we're the driver
+     */
+    public boolean isDriving() {
+        return this.driving;
+    }
+
+    /**
+     * The loop which drives the client. Add any other periodic work (like
+     * refreshing the UI) to it as a stage before calling start().
+     *
+     * @return
+     */
+    public ControlLoop getControlLoop() {
+        return this.controlLoop;
+    }
+
+    /**
+     * Start reading the joystick and sending commands
+     */
+    public void start() {
+        this.controlLoop.start();
+        this.controllerScanner.start();
+    }
 }
@@ -0,0 +1,27 @@
+package tankbot;
+
+/**
+ * Microsecond timestamps which can be compared between the client and the
+ * server (as far as their clocks agree, anyway).
+ *
+ * Anchored to the wall clock once at startup and then advanced with
+ * System.nanoTime(), so they're fine grained and never jump backwards if the
+ * wall clock is adjusted while we're running.
+ *
+ * @author Luke
+ */
+public final class Clock {
+
+    private static final long EPOCH_MICROS_AT_START = System.currentTimeMillis() * 1000;
+    private static final long NANOS_AT_START = System.nanoTime();
+
+    private Clock() {
+    }
+
+    /**
+     * @return microseconds since the epoch
+     */
+    public static long nowMicros() {
+        return EPOCH_MICROS_AT_START + (System.nanoTime() - NANOS_AT_START) / 1000;
+    }
+}
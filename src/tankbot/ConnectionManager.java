@@ -0,0 +1,288 @@
+package tankbot;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Looks after the client's connection to the server on its own thread, so
+ * nothing else ever blocks waiting for a connection.
+ *
+ * Connection attempts time out after connectTimeoutMs, and asking to connect
+ * somewhere else abandons any attempt in progress rather than waiting for it
+ * to time out. If a connection fails or is lost it keeps retrying, backing
+ * off exponentially from reconnectMinMs up to reconnectMaxMs between
+ * attempts.
+ *
+ * Listeners are told about every change of state, on the connection thread.
+ *
+ * @author Luke
+ */
+public class ConnectionManager implements Runnable {
+
+    public enum State {
+
+        DISCONNECTED, CONNECTING, CONNECTED, WAITING_TO_RETRY
+    }
+
+    public interface Listener {
+
+        /**
+         * Called on the connection thread whenever the state changes
+         *
+         * @param state
+         * @param host where we're connecting or connected to
+         * @param port
+         */
+        void connectionStateChanged(State state, String host, int port);
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final long connectTimeoutMs;
+    private final long reconnectMinMs;
+    private final long reconnectMaxMs;
+
+    //where we want to be connected, guarded by this
+    private String host;
+    private int port;
+    //bumped every time the target changes or the connection is lost, so the thread can tell its attempt is out of date
+    private int generation = 0;
+    //set when we're sent somewhere new, so the backoff starts again
+    private boolean newTarget = false;
+
+    private volatile State state = State.DISCONNECTED;
+    private volatile SocketChannel channel;
+    //selector for the connection attempt in progress, so it can be woken to abandon it
+    private volatile Selector connectSelector;
+
+    public ConnectionManager(long connectTimeoutMs, long reconnectMinMs, long reconnectMaxMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.reconnectMinMs = reconnectMinMs;
+        this.reconnectMaxMs = reconnectMaxMs;
+        Thread thread = new Thread(this, "ConnectionManager");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Connect (or reconnect) to an IP and port, giving up on any current
+     * connection or attempt. Returns straight away.
+     *
+     * @param host
+     * @param port
+     */
+    public void connectTo(String host, int port) {
+        synchronized (this) {
+            this.host = host;
+            this.port = port;
+            this.generation++;
+            this.newTarget = true;
+            notifyAll();
+        }
+        abandon();
+    }
+
+    /**
+     * Tell the manager the connection has died (eg a write failed), so it can
+     * start trying to reconnect
+     *
+     * @param lost the channel which failed, in case we've already moved on
+     */
+    public void connectionLost(SocketChannel lost) {
+        synchronized (this) {
+            if (lost != this.channel) {
+                return;
+            }
+            this.generation++;
+            notifyAll();
+        }
+        abandon();
+    }
+
+    /**
+     * Close the current connection and wake up any attempt in progress
+     */
+    private void abandon() {
+        Selector selector = this.connectSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        SocketChannel old = this.channel;
+        if (old != null) {
+            try {
+                old.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ConnectionManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * @return the connected channel (in blocking mode), or null if not
+     * connected
+     */
+    public SocketChannel getChannel() {
+        return this.state == State.CONNECTED ? this.channel : null;
+    }
+
+    private void setState(State state, String host, int port) {
+        this.state = state;
+        for (Listener listener : listeners) {
+            listener.connectionStateChanged(state, host, port);
+        }
+    }
+
+    @Override
+    public void run() {
+        int attempts = 0;
+        while (true) {
+            String targetHost;
+            int targetPort;
+            int targetGeneration;
+            synchronized (this) {
+                while (this.host == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                targetHost = this.host;
+                targetPort = this.port;
+                targetGeneration = this.generation;
+                if (this.newTarget) {
+                    attempts = 0;
+                    this.newTarget = false;
+                }
+            }
+
+            setState(State.CONNECTING, targetHost, targetPort);
+            System.out.println("Attempting to connect to " + targetHost + ":" + targetPort);
+            SocketChannel connected = connect(targetHost, targetPort, targetGeneration);
+
+            if (connected != null) {
+                attempts = 0;
+                this.channel = connected;
+                System.out.println("Connected to " + targetHost + ":" + targetPort);
+                setState(State.CONNECTED, targetHost, targetPort);
+                synchronized (this) {
+                    //stay here until the connection is lost or we're sent somewhere else
+                    while (this.generation == targetGeneration) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            return;
+                        }
+                    }
+                    if (!this.newTarget) {
+                        //lost rather than sent elsewhere, so wait a bit before trying again
+                        targetGeneration = this.generation;
+                    }
+                }
+                closeQuietly(connected);
+                this.channel = null;
+                setState(State.DISCONNECTED, targetHost, targetPort);
+            }
+
+            //back off before trying again, unless we're told to go somewhere else
+            long backoff = Math.min(reconnectMaxMs, reconnectMinMs << Math.min(attempts, 20));
+            attempts++;
+            setState(State.WAITING_TO_RETRY, targetHost, targetPort);
+            synchronized (this) {
+                long until = System.currentTimeMillis() + backoff;
+                long wait;
+                while (this.generation == targetGeneration && (wait = until - System.currentTimeMillis()) > 0) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Try to connect, giving up after connectTimeoutMs or as soon as the
+     * generation changes
+     *
+     * @return connected channel in blocking mode, or null
+     */
+    private SocketChannel connect(String host, int port, int targetGeneration) {
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(host);
+        } catch (UnknownHostException e) {
+            System.out.println("Failed to find " + host + " " + e.getMessage());
+            return null;
+        }
+
+        SocketChannel attempt = null;
+        try (Selector selector = Selector.open()) {
+            this.connectSelector = selector;
+            attempt = SocketChannel.open();
+            attempt.configureBlocking(false);
+            attempt.register(selector, SelectionKey.OP_CONNECT);
+            boolean done = attempt.connect(new InetSocketAddress(address, port));
+            long deadline = System.currentTimeMillis() + connectTimeoutMs;
+            while (!done) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("timed out");
+                }
+                selector.select(wait);
+                if (isStale(targetGeneration)) {
+                    throw new IOException("abandoned");
+                }
+                done = attempt.finishConnect();
+            }
+            if (isStale(targetGeneration)) {
+                throw new IOException("abandoned");
+            }
+            //the key has to go before the channel can be made blocking again
+            attempt.keyFor(selector).cancel();
+            selector.selectNow();
+            attempt.configureBlocking(true);
+            //commands are tiny and latency matters more than throughput
+            attempt.socket().setTcpNoDelay(true);
+            return attempt;
+        } catch (IOException e) {
+            System.out.println("Failed to connect to " + host + ":" + port + " " + e.getMessage());
+            closeQuietly(attempt);
+            return null;
+        } finally {
+            this.connectSelector = null;
+        }
+    }
+
+    private synchronized boolean isStale(int targetGeneration) {
+        return this.generation != targetGeneration;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ConnectionManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package tankbot;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the control pipeline (read joystick, work out motor commands, send
+ * them) at a fixed rate on its own thread, so everything happens in the same
+ * order every tick rather than on several unsynchronised timers.
+ *
+ * Stages run in the order they were added. Slower stages (like refreshing the
+ * UI) can be added with a lower rate, and are then only run every few ticks.
+ *
+ * Ticks are scheduled against absolute deadlines so they don't drift. If a
+ * tick overruns its period the missed ticks are skipped rather than run back
+ * to back, and counted as overruns.
+ *
+ * wakeup() runs the every-tick stages straight away, between ticks, for when
+ * something has changed that shouldn't wait (like the joystick moving). The
+ * slower stages and the tick schedule aren't affected.
+ *
+ * @author Luke
+ */
+public class ControlLoop implements Runnable {
+
+    public static final double MAX_RATE = 500;
+
+    private static final class Stage {
+
+        final Runnable task;
+        //run every this many ticks
+        final int divisor;
+
+        Stage(Runnable task, int divisor) {
+            this.task = task;
+            this.divisor = divisor;
+        }
+    }
+
+    private final String name;
+    private final double rate;
+    private final long periodNanos;
+
+    //replaced rather than modified so the loop never needs to lock or copy it
+    private volatile Stage[] stages = new Stage[0];
+
+    private volatile boolean running = false;
+    private volatile Thread thread;
+    //set by wakeup(), cleared by the loop when it runs the stages
+    private volatile boolean wakeRequested = false;
+
+    //stats, only written by the loop thread
+    private volatile long ticks = 0;
+    private volatile long overruns = 0;
+    private volatile long maxDriftNanos = 0;
+    private volatile long totalDriftNanos = 0;
+    private volatile long wakeups = 0;
+
+    /**
+     * @param name name for the loop's thread
+     * @param rate ticks per second, capped at MAX_RATE
+     */
+    public ControlLoop(String name, double rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Control loop rate must be positive");
+        }
+        this.name = name;
+        this.rate = Math.min(rate, MAX_RATE);
+        this.periodNanos = Math.round(1e9 / this.rate);
+    }
+
+    /**
+     * Add a stage to run every tick, after all the stages already added
+     *
+     * @param task
+     */
+    public void addStage(Runnable task) {
+        addStage(task, this.rate);
+    }
+
+    /**
+     * Add a stage to run at a lower rate than the loop, after all the stages
+     * already added
+     *
+     * @param task
+     * @param stageRate ticks per second, rounded to a whole number of loop
+     * ticks
+     */
+    public synchronized void addStage(Runnable task, double stageRate) {
+        int divisor = (int) Math.max(1, Math.round(this.rate / stageRate));
+        Stage[] newStages = new Stage[stages.length + 1];
+        System.arraycopy(stages, 0, newStages, 0, stages.length);
+        newStages[stages.length] = new Stage(task, divisor);
+        this.stages = newStages;
+    }
+
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+        this.running = true;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MAX_PRIORITY);
+        this.thread.start();
+    }
+
+    public synchronized void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            LockSupport.unpark(this.thread);
+            this.thread = null;
+        }
+    }
+
+    /**
+     * Run the every-tick stages as soon as possible, without waiting for the
+     * next tick. Can be called from any thread. If the loop is already
+     * running them the request is kept until they've finished, so the change
+     * that prompted it is never missed.
+     */
+    public void wakeup() {
+        this.wakeRequested = true;
+        Thread t = this.thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    @Override
+    public void run() {
+        long deadline = System.nanoTime();
+        while (running) {
+            long start = System.nanoTime();
+            long drift = start - deadline;
+            if (drift > maxDriftNanos) {
+                maxDriftNanos = drift;
+            }
+            totalDriftNanos += drift;
+
+            long tick = ticks;
+            //this tick picks up whatever the wakeup was for
+            wakeRequested = false;
+            runStages(tick, false);
+            ticks = tick + 1;
+
+            deadline += periodNanos;
+            long now = System.nanoTime();
+            if (now - deadline > 0) {
+                //we've missed at least one tick, skip ahead rather than trying to catch up
+                long missed = (now - deadline) / periodNanos + 1;
+                overruns += missed;
+                deadline += missed * periodNanos;
+            }
+            long wait;
+            while (running && (wait = deadline - System.nanoTime()) > 0) {
+                if (wakeRequested) {
+                    wakeRequested = false;
+                    runStages(tick, true);
+                    wakeups++;
+                    continue;
+                }
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    /**
+     * @param tick
+     * @param everyTickOnly just the stages that run every tick, for a wakeup
+     */
+    private void runStages(long tick, boolean everyTickOnly) {
+        for (Stage stage : stages) {
+            if (everyTickOnly ? stage.divisor == 1 : tick % stage.divisor == 0) {
+                try {
+                    stage.task.run();
+                } catch (RuntimeException ex) {
+                    //one bad tick shouldn't kill the whole loop
+                    Logger.getLogger(ControlLoop.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    public double getRate() {
+        return this.rate;
+    }
+
+    public long getTicks() {
+        return this.ticks;
+    }
+
+    /**
+     * @return number of ticks missed because a tick took longer than the
+     * period
+     */
+    public long getOverruns() {
+        return this.overruns;
+    }
+
+    /**
+     * @return number of times the every-tick stages have been run early by
+     * wakeup()
+     */
+    public long getWakeups() {
+        return this.wakeups;
+    }
+
+    /**
+     * @return longest time a tick has started after it was meant to
+     */
+    public long getMaxDriftNanos() {
+        return this.maxDriftNanos;
+    }
+
+    /**
+     * @return average time ticks have started after they were meant to
+     */
+    public long getMeanDriftNanos() {
+        long t = this.ticks;
+        return t == 0 ? 0 : this.totalDriftNanos / t;
+    }
+
+    /**
+     * @return one line summary of how the loop is keeping up
+     */
+    public String getStatus() {
+        return String.format("%s: %.0fHz, %d ticks, %d wakeups, %d overruns, drift mean %.3fms max %.3fms",
+                name, rate, getTicks(), getWakeups(), getOverruns(), getMeanDriftNanos() / 1e6, getMaxDriftNanos() / 1e6);
+    }
+}
@@ -5,9 +5,9 @@ package tankbot;
 
 import java.awt.*;
 import java.awt.event.KeyEvent;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 /**
  *
@@ -19,18 +19,26 @@ public class ControlWindow extends javax.swing.JFrame {
 
     private final Client client;
     private final MotorState motorState;
+    //the UI's own copy, only touched on the swing thread
+    private final MotorSnapshot snapshot;
     private String defaultIp;
     private int defaultport;
-    //for updating from motorstate
-    private final Timer motorStateTimer;
-    //how often to poll for new motor state
-    private final static long MOTOR_STATE_UPDATE_PERIOD_MS = 50;
+    //how often (Hz) to refresh the UI from the motor state
+    private final static double UI_REFRESH_RATE = 20;
+    //true while a refresh is waiting to run on the swing thread, so a busy UI doesn't build up a queue of them
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+    //telemetry older than this is shown as stale
+    private final static long TELEMETRY_STALE_MICROS = 1000000;
 
     private class MyDispatcher implements KeyEventDispatcher {
 
         @Override
         public boolean dispatchKeyEvent(KeyEvent e) {
             if (e.getID() == KeyEvent.KEY_PRESSED) {
+                if (e.getKeyCode() >= KeyEvent.VK_1 && e.getKeyCode() <= KeyEvent.VK_9) {
+                    //number keys run the maneuvers from the config
+                    client.runManeuver(e.getKeyCode() - KeyEvent.VK_0);
+                }
                 motorState.keyDown(e);
             } else if (e.getID() == KeyEvent.KEY_RELEASED) {
                 motorState.keyUp(e);
@@ -47,22 +55,66 @@ public class ControlWindow extends javax.swing.JFrame {
     public ControlWindow(Client _client, MotorState motorState, String defaultIp, int defaultPort) {
         this.client = _client;
         this.motorState = motorState;
+        this.snapshot = new MotorSnapshot(motorState.getNumMotors());
         this.defaultIp = defaultIp;
         this.defaultport = defaultPort;
 
         KeyboardFocusManager manager = KeyboardFocusManager.getCurrentKeyboardFocusManager();
         manager.addKeyEventDispatcher(new MyDispatcher());
 
-        this.motorStateTimer = new Timer("MotorStateTimer");
-        this.motorStateTimer.scheduleAtFixedRate(new TimerTask() {
+        initComponents();
+        setTitle("TankBot - Disconnected");
+
+        //show how the connection is doing in the title bar
+        client.addConnectionListener(new ConnectionManager.Listener() {
+
+            @Override
+            public void connectionStateChanged(final ConnectionManager.State state, final String host, final int port) {
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        updateConnectionState(state, host, port);
+                    }
+                });
+            }
+        });
+
+        //refresh from the control loop, but on the swing thread so the loop never waits for the UI
+        final Runnable refresh = new Runnable() {
 
             @Override
             public void run() {
+                refreshPending.set(false);
                 updateUIFromMotorState();
+                updateTelemetry();
             }
-        }, (long) MOTOR_STATE_UPDATE_PERIOD_MS, MOTOR_STATE_UPDATE_PERIOD_MS);
+        };
+        client.getControlLoop().addStage(new Runnable() {
 
-        initComponents();
+            @Override
+            public void run() {
+                if (refreshPending.compareAndSet(false, true)) {
+                    SwingUtilities.invokeLater(refresh);
+                }
+            }
+        }, UI_REFRESH_RATE);
+    }
+
+    private void updateConnectionState(ConnectionManager.State state, String host, int port) {
+        switch (state) {
+            case CONNECTED:
+                setTitle("TankBot - Connected to " + host + ":" + port);
+                break;
+            case CONNECTING:
+                setTitle("TankBot - Connecting to " + host + ":" + port + "...");
+                break;
+            case WAITING_TO_RETRY:
+                setTitle("TankBot - Couldn't connect to " + host + ":" + port + ", retrying");
+                break;
+            default:
+                setTitle("TankBot - Disconnected");
+        }
     }
 
     private void updateUIFromMotorState() {
@@ -72,11 +124,51 @@ public class ControlWindow extends javax.swing.JFrame {
             this.motorState.setMaxSpeed(((float) this.throttleSlider.getValue()) / ((float) MAX_SLIDER_VALUE));
         }
 
-        //assuming that if motor 0 is braked, the handbrake is on
-        updateMotorState(this.motorState.getMotorCommand(0).speed, this.motorState.getMotorCommand(1).speed, this.motorState.getMotorCommand(0).brake, this.motorState.getMaxSpeed());
+        this.motorState.read(this.snapshot);
+        //only the tracks have sliders, assuming that if motor 0 is braked, the handbrake is on
+        float m1Speed = this.snapshot.getNumMotors() > 1 ? this.snapshot.getSpeed(1) : 0;
+        updateMotorState(this.snapshot.getSpeed(0), m1Speed, this.snapshot.getBrake(0), this.snapshot.getMaxSpeed());
 
     }
 
+    /**
+     * Show what the server says it's actually doing
+     */
+    private void updateTelemetry() {
+        Telemetry telemetry = this.client.getTelemetry();
+        if (telemetry == null) {
+            this.telemetryLabel.setText("No telemetry");
+            return;
+        }
+        StringBuilder text = new StringBuilder(telemetry.isDriver() ? "Pi:" : "Pi (observing):");
+        for (int i = 0; i < telemetry.getNumMotors(); i++) {
+            if (telemetry.getBrake(i)) {
+                text.append(" brake");
+            } else {
+                text.append(String.format(" %+.2f", telemetry.getSpeed(i)));
+            }
+        }
+        if (telemetry.getLatencyMicros() != Telemetry.NO_LATENCY) {
+            text.append(String.format(", %.1fms", telemetry.getLatencyMicros() / 1000f));
+        }
+        if (telemetry.isWatchdogTripped()) {
+            text.append(", WATCHDOG STOPPED");
+        } else if (telemetry.isManeuverRunning()) {
+            text.append(", maneuver");
+        }
+        if (telemetry.getLoad() != Telemetry.NO_LOAD) {
+            text.append(String.format(", load %.2f", telemetry.getLoad()));
+        }
+        LinkTiming timing = this.client.getLinkTiming();
+        if (timing.hasEstimate()) {
+            text.append(String.format(", rtt %.1fms", timing.getRttMicros() / 1000f));
+        }
+        if (Clock.nowMicros() - telemetry.getReceivedMicros() > TELEMETRY_STALE_MICROS) {
+            text.append(" (stale)");
+        }
+        this.telemetryLabel.setText(text.toString());
+    }
+
     /**
      * Speeds from -1 to 1
      *
@@ -121,6 +213,7 @@ public class ControlWindow extends javax.swing.JFrame {
         motor0Slider = new javax.swing.JSlider();
         throttleSlider = new javax.swing.JSlider();
         handbreakButton = new javax.swing.JToggleButton();
+        telemetryLabel = new javax.swing.JLabel();
         jMenuBar1 = new javax.swing.JMenuBar();
         optionsMenu = new javax.swing.JMenu();
         serverIP = new javax.swing.JMenuItem();
@@ -157,6 +250,8 @@ public class ControlWindow extends javax.swing.JFrame {
 
         handbreakButton.setText("Handbreak");
 
+        telemetryLabel.setText("No telemetry");
+
         optionsMenu.setText("Options");
 
         serverIP.setText("Server IP");
@@ -188,6 +283,10 @@ public class ControlWindow extends javax.swing.JFrame {
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, 149, Short.MAX_VALUE)
                 .addComponent(handbreakButton)
                 .addGap(60, 60, 60))
+            .addGroup(layout.createSequentialGroup()
+                .addContainerGap()
+                .addComponent(telemetryLabel)
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
         layout.setVerticalGroup(
             layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
@@ -205,7 +304,10 @@ public class ControlWindow extends javax.swing.JFrame {
                     .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, layout.createSequentialGroup()
                         .addGap(54, 54, 54)
                         .addComponent(handbreakButton)
-                        .addGap(181, 181, 181))))
+                        .addGap(181, 181, 181)))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(telemetryLabel)
+                .addContainerGap())
         );
 
         pack();
@@ -240,6 +342,7 @@ public class ControlWindow extends javax.swing.JFrame {
     private javax.swing.JSlider motor1Slider;
     private javax.swing.JMenu optionsMenu;
     private javax.swing.JMenuItem serverIP;
+    private javax.swing.JLabel telemetryLabel;
     private javax.swing.JSlider throttleSlider;
     // End of variables declaration//GEN-END:variables
 }
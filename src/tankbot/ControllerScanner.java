@@ -0,0 +1,236 @@
+package tankbot;
+
+import java.lang.reflect.Constructor;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import net.java.games.input.Component;
+import net.java.games.input.Controller;
+import net.java.games.input.ControllerEnvironment;
+
+/**
+ * Finds a joystick on its own thread, so looking for one never holds up
+ * startup, and keeps looking so one can be plugged in (or swapped) without
+ * restarting.
+ *
+ * While there's no joystick it scans for one, backing off exponentially from
+ * rescanMinMs up to rescanMaxMs between scans. Once there is one it stops
+ * scanning until it's told the joystick has gone with joystickLost(). It
+ * never polls the joystick itself to find out: jinput controllers mustn't be
+ * polled from more than one thread, so only whatever is reading the joystick
+ * (JoystickInput, or MotorState.update()) can tell.
+ *
+ * jinput only looks for controllers once per environment, so every scan after
+ * the first needs a new environment, which has to be made by reflection.
+ * Each one opens all the input devices again and jinput doesn't close them
+ * until we exit, which is why scans back off rather than running every few
+ * seconds forever. If the environment can't be made only the first scan will
+ * find anything.
+ *
+ * Listeners are told about every change of joystick, on the scanner thread.
+ *
+ * @author Luke
+ */
+public class ControllerScanner implements Runnable {
+
+    public interface Listener {
+
+        /**
+         * Called on the scanner thread when a joystick is found or lost
+         *
+         * @param joystick the new joystick, or null if it's gone
+         */
+        void joystickChanged(Controller joystick);
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final long rescanMinMs;
+    private final long rescanMaxMs;
+    private final boolean debug;
+
+    private volatile Controller joystick;
+    //the joystick reported lost, if it hasn't been dealt with yet
+    private volatile Controller lost;
+    //waited on between scans, and while there's a joystick
+    private final Object signal = new Object();
+    private volatile long scans = 0;
+    //false once making a new environment has failed
+    private boolean canRescan = true;
+
+    private volatile boolean running = false;
+    private Thread thread;
+
+    public ControllerScanner(long rescanMinMs, long rescanMaxMs, boolean debug) {
+        this.rescanMinMs = rescanMinMs;
+        this.rescanMaxMs = Math.max(rescanMinMs, rescanMaxMs);
+        this.debug = debug;
+    }
+
+    public void addListener(Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+        this.running = true;
+        this.thread = new Thread(this, "ControllerScanner");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public synchronized void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+            this.thread = null;
+        }
+    }
+
+    /**
+     * Tell the scanner a joystick has gone, so it starts looking for another.
+     * Called by whichever thread polls the joystick, as that's the only one
+     * which can tell.
+     *
+     * @param joystick the joystick that has gone, ignored if it's not the one
+     * in use
+     */
+    public void joystickLost(Controller joystick) {
+        synchronized (signal) {
+            if (joystick != null && joystick == this.joystick) {
+                this.lost = joystick;
+                signal.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long waitMs = rescanMinMs;
+        while (running) {
+            Controller current = this.joystick;
+            if (current != null && current == this.lost) {
+                System.out.println("Lost joystick: " + current.getName());
+                current = null;
+                changeJoystick(null);
+                waitMs = rescanMinMs;
+            }
+            if (current == null) {
+                Controller found = scan();
+                if (found != null) {
+                    changeJoystick(found);
+                    waitMs = rescanMinMs;
+                } else if (scans > 1) {
+                    waitMs = Math.min(waitMs * 2, rescanMaxMs);
+                }
+            }
+            try {
+                synchronized (signal) {
+                    if (this.joystick == null) {
+                        signal.wait(waitMs);
+                    } else {
+                        while (running && this.joystick != this.lost) {
+                            //nothing to do until it goes
+                            signal.wait();
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                //being stopped
+            }
+        }
+    }
+
+    private void changeJoystick(Controller joystick) {
+        this.joystick = joystick;
+        for (Listener listener : listeners) {
+            listener.joystickChanged(joystick);
+        }
+    }
+
+    /**
+     * Look for a joystick
+     *
+     * @return the last stick or gamepad found, or null if there isn't one
+     */
+    private Controller scan() {
+        ControllerEnvironment environment = scans == 0 ? ControllerEnvironment.getDefaultEnvironment() : newEnvironment();
+        scans++;
+        if (environment == null) {
+            return null;
+        }
+        Controller[] controllers = environment.getControllers();
+        Controller found = null;
+        //crudely find a joystick
+        for (Controller c : controllers) {
+            System.out.println(c.getName());
+            if (c.getType().equals(Controller.Type.STICK) || c.getType().equals(Controller.Type.GAMEPAD)) {
+                found = c;
+            }
+            if (debug) {
+                printComponents(c);
+            }
+        }
+        if (found != null) {
+            System.out.println("Found joystick: " + found.getName());
+        }
+        return found;
+    }
+
+    /**
+     * @return a new environment which will look for controllers again, or
+     * null if it can't be made
+     */
+    private ControllerEnvironment newEnvironment() {
+        if (!canRescan) {
+            return null;
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            Constructor<ControllerEnvironment> constructor = (Constructor<ControllerEnvironment>) Class.forName("net.java.games.input.DefaultControllerEnvironment").getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            System.err.println("Can't rescan for joysticks, plug one in before starting: " + ex);
+            canRescan = false;
+            return null;
+        }
+    }
+
+    private static void printComponents(Controller controller) {
+        System.out.println("Type: " + controller.getType().toString());
+        /* Get this controllers components (buttons and axis) */
+        Component[] components = controller.getComponents();
+        System.out.println("Component Count: " + components.length);
+        for (int j = 0; j < components.length; j++) {
+
+            /* Get the components name */
+            System.out.println("Component " + j + ": " + components[j].getName());
+
+            System.out.println("    Identifier: " + components[j].getIdentifier().getName());
+            System.out.print("    ComponentType: ");
+            if (components[j].isRelative()) {
+                System.out.println("Relative");
+            } else {
+                System.out.println("Absolute");
+            }
+            if (components[j].isAnalog()) {
+                System.out.println(" Analog");
+            } else {
+                System.out.println(" Digital");
+            }
+        }
+    }
+
+    /**
+     * @return the joystick in use, or null if there isn't one
+     */
+    public Controller getJoystick() {
+        return this.joystick;
+    }
+
+    public long getScans() {
+        return this.scans;
+    }
+}
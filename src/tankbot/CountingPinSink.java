@@ -0,0 +1,51 @@
+package tankbot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Throws pin states away, just counting them, for running the server without
+ * a Pi (eg with the load generator).
+ *
+ * Counts are written by whichever thread is setting the pins and can be read
+ * from any other.
+ *
+ * @author Luke
+ */
+public class CountingPinSink implements PinSink {
+
+    private volatile long writes = 0;
+    private volatile long lines = 0;
+    private volatile long bytes = 0;
+
+    @Override
+    public void write(ByteBuffer buffer) {
+        int newLines = 0;
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                newLines++;
+            }
+        }
+        writes++;
+        lines += newLines;
+        bytes += buffer.remaining();
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * @return number of writes, ie frames which changed any pins
+     */
+    public long getWrites() {
+        return this.writes;
+    }
+
+    /**
+     * @return number of pins set
+     */
+    public long getLines() {
+        return this.lines;
+    }
+
+    public long getBytes() {
+        return this.bytes;
+    }
+}
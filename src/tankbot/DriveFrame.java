@@ -0,0 +1,79 @@
+package tankbot;
+
+/**
+ * The state of every motor for a single control tick, so that all the motors
+ * can be sent and applied together rather than one MotorCommand at a time
+ * (which lets the tracks briefly disagree with each other).
+ *
+ * Mutable so a single instance can be reused every tick.
+ *
+ * @author Luke
+ */
+public class DriveFrame {
+
+    //the wire protocol only has a byte for the motor count
+    public static final int MAX_MOTORS = 255;
+
+    private int sequence;
+    //when the joystick was read to make this frame, from Clock.nowMicros()
+    private long captureMicros;
+    private int numMotors;
+    private final boolean[] brakes;
+    private final float[] speeds;
+
+    /**
+     * @param capacity the most motors this frame will ever need to hold
+     */
+    public DriveFrame(int capacity) {
+        this.brakes = new boolean[capacity];
+        this.speeds = new float[capacity];
+        this.numMotors = capacity;
+    }
+
+    /**
+     * Set the state of one motor
+     *
+     * @param motor
+     * @param brake
+     * @param speed -1 to +1
+     */
+    public void set(int motor, boolean brake, float speed) {
+        this.brakes[motor] = brake;
+        this.speeds[motor] = speed;
+    }
+
+    public boolean getBrake(int motor) {
+        return this.brakes[motor];
+    }
+
+    public float getSpeed(int motor) {
+        return this.speeds[motor];
+    }
+
+    public int getNumMotors() {
+        return this.numMotors;
+    }
+
+    public void setNumMotors(int numMotors) {
+        if (numMotors > this.speeds.length) {
+            throw new IllegalArgumentException("DriveFrame can only hold " + this.speeds.length + " motors");
+        }
+        this.numMotors = numMotors;
+    }
+
+    public int getSequence() {
+        return this.sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    public long getCaptureMicros() {
+        return this.captureMicros;
+    }
+
+    public void setCaptureMicros(long captureMicros) {
+        this.captureMicros = captureMicros;
+    }
+}
@@ -0,0 +1,281 @@
+package tankbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the pins by writing straight to the Pi's GPIO registers, memory
+ * mapped from /dev/gpiomem, rather than going through the pi-blaster daemon.
+ *
+ * /dev/gpiomem only maps the GPIO registers (not the PWM or DMA hardware
+ * pi-blaster uses), so anything set to a fraction is pulsed in software by
+ * a thread of its own at pwmFrequency. Pins set to zero or one are written
+ * directly on flush. Both threads only ever write the set and clear
+ * registers, which change just the bits written, so they never need a lock.
+ *
+ * @author Luke
+ */
+public class GpioMemBackend implements PwmBackend {
+
+    //the BCM2835 has 54 GPIO lines
+    public static final int NUM_PINS = 54;
+    //how much /dev/gpiomem lets us map
+    public static final int BLOCK_SIZE = 4096;
+
+    //register offsets, each bank of 32 pins has its own register
+    protected static final int GPFSEL0 = 0x00;
+    protected static final int GPSET0 = 0x1C;
+    protected static final int GPCLR0 = 0x28;
+    protected static final int GPLEV0 = 0x34;
+
+    //function select bits for an output, 3 bits per pin, 10 pins per register
+    private static final int FSEL_OUTPUT = 1;
+    private static final int FSEL_MASK = 7;
+
+    private static final int UNKNOWN = -1;
+    private static final int HIGH = 100;
+
+    //only ever use absolute gets and puts, so threads can share it
+    private final ByteBuffer registers;
+
+    //value wanted for each pin this frame, in hundredths
+    private final int[] pending = new int[NUM_PINS];
+    //pins changed this frame, in the order they were first set
+    private final int[] changedPins = new int[NUM_PINS];
+    private int numChanged = 0;
+    //last value applied to each pin, in hundredths
+    private final int[] applied = new int[NUM_PINS];
+    private final boolean[] isOutput = new boolean[NUM_PINS];
+
+    //duty cycle in hundredths of pins being pulsed, UNKNOWN for pins which aren't
+    private final AtomicIntegerArray duty = new AtomicIntegerArray(NUM_PINS);
+    //pins being pulsed, copied on write
+    private volatile int[] pwmPins = new int[0];
+    private final long periodNanos;
+    private Thread pwmThread;
+
+    /**
+     * @param file /dev/gpiomem, or any file at least BLOCK_SIZE long
+     * @param pwmFrequency Hz to pulse pins at
+     * @throws IOException if it couldn't be mapped
+     */
+    public GpioMemBackend(File file, double pwmFrequency) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            //the mapping outlives the file being closed
+            this.registers = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        this.periodNanos = Math.round(1e9 / pwmFrequency);
+        Arrays.fill(pending, UNKNOWN);
+        Arrays.fill(applied, UNKNOWN);
+        for (int i = 0; i < NUM_PINS; i++) {
+            duty.set(i, UNKNOWN);
+        }
+    }
+
+    @Override
+    public void set(int pin, float value) {
+        setHundredths(pin, Math.round(Math.max(0, Math.min(1, value)) * HIGH), true);
+    }
+
+    @Override
+    public void set(int pin, boolean high) {
+        setHundredths(pin, high ? HIGH : 0, false);
+    }
+
+    private void setHundredths(int pin, int hundredths, boolean pulse) {
+        if (pin < 0 || pin >= NUM_PINS) {
+            throw new IllegalArgumentException("No such GPIO pin " + pin);
+        }
+        if (pulse && duty.get(pin) == UNKNOWN) {
+            startPulsing(pin);
+        }
+        if (pending[pin] == UNKNOWN) {
+            changedPins[numChanged++] = pin;
+        }
+        pending[pin] = hundredths;
+    }
+
+    @Override
+    public int flush() {
+        int set0 = 0, set1 = 0, clear0 = 0, clear1 = 0;
+        int numApplied = 0;
+        for (int i = 0; i < numChanged; i++) {
+            int pin = changedPins[i];
+            int value = pending[pin];
+            pending[pin] = UNKNOWN;
+            if (value == applied[pin]) {
+                continue;
+            }
+            applied[pin] = value;
+            numApplied++;
+            if (!isOutput[pin]) {
+                makeOutput(pin);
+            }
+            if (duty.get(pin) != UNKNOWN) {
+                //the pwm thread picks it up next cycle
+                duty.set(pin, value);
+            } else if (value > 0) {
+                if (pin < 32) {
+                    set0 |= 1 << pin;
+                } else {
+                    set1 |= 1 << (pin - 32);
+                }
+            } else {
+                if (pin < 32) {
+                    clear0 |= 1 << pin;
+                } else {
+                    clear1 |= 1 << (pin - 32);
+                }
+            }
+        }
+        numChanged = 0;
+        writeBanks(GPSET0, set0, set1);
+        writeBanks(GPCLR0, clear0, clear1);
+        return numApplied;
+    }
+
+    /**
+     * @param pin
+     * @return duty cycle in hundredths of a pin being pulsed, or -1 if it
+     * isn't
+     */
+    public int getDuty(int pin) {
+        return duty.get(pin);
+    }
+
+    /**
+     * Set a pin's function to output
+     */
+    private void makeOutput(int pin) {
+        int offset = GPFSEL0 + (pin / 10) * 4;
+        int shift = (pin % 10) * 3;
+        int fsel = readRegister(offset);
+        writeRegister(offset, (fsel & ~(FSEL_MASK << shift)) | (FSEL_OUTPUT << shift));
+        isOutput[pin] = true;
+    }
+
+    /**
+     * Start pulsing a pin, and the pwm thread if it isn't already running
+     */
+    private void startPulsing(int pin) {
+        duty.set(pin, 0);
+        int[] pins = Arrays.copyOf(pwmPins, pwmPins.length + 1);
+        pins[pins.length - 1] = pin;
+        pwmPins = pins;
+        if (pwmThread == null) {
+            pwmThread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    pulse();
+                }
+            }, "SoftwarePwm");
+            pwmThread.setDaemon(true);
+            pwmThread.start();
+        }
+    }
+
+    /**
+     * The pwm thread: every period, turn on every pin with any duty, then turn
+     * each off again once its share of the period is up
+     */
+    private void pulse() {
+        //pins and their duty this cycle, in the order they turn off
+        int[] edgePins = new int[NUM_PINS];
+        int[] edgeDuty = new int[NUM_PINS];
+        long periodStart = System.nanoTime();
+        while (true) {
+            int[] pins = this.pwmPins;
+            int numEdges = 0;
+            int on0 = 0, on1 = 0, off0 = 0, off1 = 0;
+            for (int pin : pins) {
+                int d = duty.get(pin);
+                if (d <= 0) {
+                    if (pin < 32) {
+                        off0 |= 1 << pin;
+                    } else {
+                        off1 |= 1 << (pin - 32);
+                    }
+                    continue;
+                }
+                if (pin < 32) {
+                    on0 |= 1 << pin;
+                } else {
+                    on1 |= 1 << (pin - 32);
+                }
+                if (d < HIGH) {
+                    //insertion sort, there are only ever a few
+                    int j = numEdges++;
+                    while (j > 0 && edgeDuty[j - 1] > d) {
+                        edgePins[j] = edgePins[j - 1];
+                        edgeDuty[j] = edgeDuty[j - 1];
+                        j--;
+                    }
+                    edgePins[j] = pin;
+                    edgeDuty[j] = d;
+                }
+            }
+            writeBanks(GPSET0, on0, on1);
+            writeBanks(GPCLR0, off0, off1);
+
+            for (int i = 0; i < numEdges;) {
+                int d = edgeDuty[i];
+                parkUntil(periodStart + periodNanos * d / HIGH);
+                //turn off every pin with the same duty together
+                int clear0 = 0, clear1 = 0;
+                for (; i < numEdges && edgeDuty[i] == d; i++) {
+                    int pin = edgePins[i];
+                    if (pin < 32) {
+                        clear0 |= 1 << pin;
+                    } else {
+                        clear1 |= 1 << (pin - 32);
+                    }
+                }
+                writeBanks(GPCLR0, clear0, clear1);
+            }
+
+            periodStart += periodNanos;
+            long now = System.nanoTime();
+            if (now - periodStart > periodNanos) {
+                //fell well behind (eg a gc pause), don't try to catch up
+                periodStart = now;
+            }
+            parkUntil(periodStart);
+        }
+    }
+
+    private void parkUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, wait);
+        }
+    }
+
+    /**
+     * Write a pair of bank registers (eg GPSET0 and GPSET1), skipping any
+     * with no bits to write
+     */
+    private void writeBanks(int offset, int bank0, int bank1) {
+        if (bank0 != 0) {
+            writeRegister(offset, bank0);
+        }
+        if (bank1 != 0) {
+            writeRegister(offset + 4, bank1);
+        }
+    }
+
+    protected int readRegister(int offset) {
+        return registers.getInt(offset);
+    }
+
+    protected void writeRegister(int offset, int value) {
+        registers.putInt(offset, value);
+    }
+}
@@ -0,0 +1,207 @@
+package tankbot;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+import net.java.games.input.Component;
+import net.java.games.input.Controller;
+import net.java.games.input.Event;
+import net.java.games.input.EventQueue;
+
+/**
+ * Reads the joystick on its own thread, draining jinput's event queue as
+ * fast as the joystick fills it instead of waiting for the control loop's
+ * next tick to poll it.
+ *
+ * Every component's latest value is kept for MotorState to read, along with
+ * a count of how many times each button has gone down, so a press too short
+ * to still be held at the next update() isn't lost. When something changes
+ * by more than the input epsilon (or any button changes at all) the change
+ * listener is called straight away, so the control loop can work out and
+ * send new motor commands without waiting for its next tick.
+ *
+ * jinput only fills the event queue when the controller is polled, so this
+ * still polls, but every pollMicros rather than every control loop tick.
+ * Events are timestamped with Clock.nowMicros() when the poll that found
+ * them returns, since jinput's own event times aren't on the same clock on
+ * every platform. That's late by at most one poll.
+ *
+ * jinput controllers mustn't be polled from more than one thread, so while
+ * this is running nothing else should poll the joystick. That includes
+ * checking it's still there: if a poll fails this stops and calls the lost
+ * listener instead.
+ *
+ * @author Luke
+ */
+public class JoystickInput implements Runnable {
+
+    private final Controller joystick;
+    private final Component[] components;
+    private final float epsilon;
+    private final long pollNanos;
+    private final Runnable changeListener;
+    private final Runnable lostListener;
+
+    //latest value of each component, as float bits, written by the input thread
+    private final AtomicIntegerArray values;
+    //how many times each component has gone from 0 to something else
+    private final AtomicIntegerArray presses;
+    //value of each component when it last counted as a change, input thread only
+    private final float[] changedValues;
+
+    //when the newest event and the newest significant change were read
+    private volatile long lastEventMicros = 0;
+    private volatile long lastChangeMicros = 0;
+    private volatile long events = 0;
+    private volatile long changes = 0;
+
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * @param joystick
+     * @param epsilon how far an axis has to move to count as a change
+     * @param pollMicros how often to poll the joystick for new events
+     * @param changeListener called on the input thread after every change
+     * @param lostListener called on the input thread if the joystick goes,
+     * or null
+     */
+    public JoystickInput(Controller joystick, float epsilon, long pollMicros, Runnable changeListener, Runnable lostListener) {
+        this.joystick = joystick;
+        this.components = joystick.getComponents();
+        this.epsilon = epsilon;
+        this.pollNanos = pollMicros * 1000;
+        this.changeListener = changeListener;
+        this.lostListener = lostListener;
+        this.values = new AtomicIntegerArray(components.length);
+        this.presses = new AtomicIntegerArray(components.length);
+        this.changedValues = new float[components.length];
+        //start from wherever everything is now, events only say what changes
+        joystick.poll();
+        for (int i = 0; i < components.length; i++) {
+            float value = components[i].getPollData();
+            values.set(i, Float.floatToRawIntBits(value));
+            changedValues[i] = value;
+        }
+    }
+
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+        this.running = true;
+        this.thread = new Thread(this, "JoystickInput");
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MAX_PRIORITY);
+        this.thread.start();
+    }
+
+    public synchronized void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            LockSupport.unpark(this.thread);
+            this.thread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        EventQueue queue = joystick.getEventQueue();
+        Event event = new Event();
+        while (running) {
+            if (!joystick.poll()) {
+                System.err.println("Lost joystick " + joystick.getName());
+                running = false;
+                if (lostListener != null) {
+                    lostListener.run();
+                }
+                break;
+            }
+            long now = Clock.nowMicros();
+            boolean changed = false;
+            while (queue.getNextEvent(event)) {
+                int i = indexOf(event.getComponent());
+                if (i < 0) {
+                    continue;
+                }
+                float value = event.getValue();
+                if (value != 0 && Float.intBitsToFloat(values.get(i)) == 0) {
+                    presses.incrementAndGet(i);
+                }
+                values.set(i, Float.floatToRawIntBits(value));
+                events++;
+                lastEventMicros = now;
+                boolean significant = components[i].isAnalog()
+                        ? Math.abs(value - changedValues[i]) > epsilon
+                        : value != changedValues[i];
+                if (significant) {
+                    changedValues[i] = value;
+                    changed = true;
+                }
+            }
+            if (changed) {
+                changes++;
+                lastChangeMicros = now;
+                changeListener.run();
+            }
+            LockSupport.parkNanos(this, pollNanos);
+        }
+    }
+
+    /**
+     * @param component
+     * @return where the component is in the joystick's components, or -1
+     */
+    public int indexOf(Component component) {
+        //only a handful of components, so quicker than hashing
+        for (int i = 0; i < components.length; i++) {
+            if (components[i] == component) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param index from indexOf()
+     * @return the component's latest value
+     */
+    public float getValue(int index) {
+        return Float.intBitsToFloat(values.get(index));
+    }
+
+    /**
+     * @param index from indexOf()
+     * @return how many times the component has been pressed, so a caller can
+     * tell if it was pressed and let go since it last looked
+     */
+    public int getPresses(int index) {
+        return presses.get(index);
+    }
+
+    /**
+     * @return when the newest event was read, from Clock.nowMicros(), 0 if
+     * there hasn't been one
+     */
+    public long getLastEventMicros() {
+        return lastEventMicros;
+    }
+
+    /**
+     * @return when the newest change that called the listener was read
+     */
+    public long getLastChangeMicros() {
+        return lastChangeMicros;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    public long getChanges() {
+        return changes;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+}
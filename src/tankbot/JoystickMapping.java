@@ -0,0 +1,118 @@
+package tankbot;
+
+import java.util.Properties;
+import net.java.games.input.Component;
+import net.java.games.input.Controller;
+
+/**
+ * Which of a joystick's components MotorState uses for what, found by
+ * matching the component names set in the config (xAxis, yAxis, zAxis,
+ * throttle, trigger, handbreak) against the joystick's components.
+ *
+ * Held as indexes into the joystick's components rather than the components
+ * themselves, so once worked out for one kind of joystick it can be reused
+ * for any other of the same kind, including the same one plugged back in.
+ *
+ * @author Luke
+ */
+public class JoystickMapping {
+
+    //index of a component the joystick hasn't got
+    public static final int MISSING = -1;
+
+    final int xAxis, yAxis, zAxis, throttle, handbrake, trigger;
+    private final int numComponents;
+
+    private JoystickMapping(int xAxis, int yAxis, int zAxis, int throttle, int handbrake, int trigger, int numComponents) {
+        this.xAxis = xAxis;
+        this.yAxis = yAxis;
+        this.zAxis = zAxis;
+        this.throttle = throttle;
+        this.handbrake = handbrake;
+        this.trigger = trigger;
+        this.numComponents = numComponents;
+    }
+
+    /**
+     * @param joystick
+     * @return what kind of joystick it is, joysticks with the same key can
+     * share a mapping
+     */
+    public static String getKey(Controller joystick) {
+        return joystick.getType() + ":" + joystick.getName() + ":" + joystick.getComponents().length;
+    }
+
+    /**
+     * Match the config's component names against a joystick
+     *
+     * @param joystick
+     * @param properties
+     * @return
+     */
+    public static JoystickMapping create(Controller joystick, Properties properties) {
+        int xAxis = MISSING, yAxis = MISSING, zAxis = MISSING, throttle = MISSING, handbrake = MISSING, trigger = MISSING;
+        //defaults are all set up for windows 7 and an xbox controller
+        Component[] components = joystick.getComponents();
+        for (int i = 0; i < components.length; i++) {
+            Component component = components[i];
+            String name = component.getIdentifier().getName();
+            if (component.isAnalog() && name.equalsIgnoreCase(properties.getProperty("xAxis", "x"))) {
+                xAxis = i;
+            }
+            if (component.isAnalog() && name.equalsIgnoreCase(properties.getProperty("yAxis", "y"))) {
+                yAxis = i;
+            }
+            if (component.isAnalog() && name.equalsIgnoreCase(properties.getProperty("zAxis", "rz"))) {
+                //this is if the stick is being rotated
+                zAxis = i;
+            }
+            if (component.isAnalog() && name.equalsIgnoreCase(properties.getProperty("throttle", "slider"))) {
+                throttle = i;
+            }
+            if (name.equals(properties.getProperty("trigger", "0"))) {
+                trigger = i;
+            }
+            if (name.equals(properties.getProperty("handbreak", "1"))) {
+                handbrake = i;
+            }
+        }
+
+        if (handbrake == MISSING || trigger == MISSING) {
+            System.err.println("Could not find trigger or handbreak");
+        }
+        if (xAxis == MISSING || yAxis == MISSING) {
+            System.err.println("Could not find x and y axis");
+        }
+        if (zAxis == MISSING) {
+            System.err.println("Could not find z axis");
+        }
+        return new JoystickMapping(xAxis, yAxis, zAxis, throttle, handbrake, trigger, components.length);
+    }
+
+    /**
+     * @return true if there are enough axes to drive with
+     */
+    public boolean canDrive() {
+        return xAxis != MISSING && yAxis != MISSING;
+    }
+
+    public boolean hasZAxis() {
+        return zAxis != MISSING;
+    }
+
+    public boolean hasThrottle() {
+        return throttle != MISSING;
+    }
+
+    public boolean hasHandbrake() {
+        return handbrake != MISSING;
+    }
+
+    /**
+     * @param joystick
+     * @return true if this mapping fits the joystick
+     */
+    public boolean fits(Controller joystick) {
+        return joystick.getComponents().length == numComponents;
+    }
+}
@@ -0,0 +1,131 @@
+package tankbot;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of latencies in microseconds, cheap enough to record
+ * every command.
+ *
+ * Buckets are log-linear: exact below SUB_BUCKETS, then each power of two is
+ * split into SUB_BUCKETS equal buckets, so percentiles are accurate to within
+ * about 6% whatever the scale. Recording never allocates and can be done from
+ * any thread while other threads read percentiles.
+ *
+ * @author Luke
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //covers up to about 35 minutes, anything longer goes in the last bucket
+    private static final int MAX_EXPONENT = 31;
+    private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLongArray totals = new AtomicLongArray(3);
+    private static final int COUNT = 0, SUM = 1, MAX = 2;
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record one latency. Negative values (eg from clocks disagreeing) count
+     * as zero.
+     *
+     * @param micros
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        buckets.incrementAndGet(bucketFor(micros));
+        totals.incrementAndGet(COUNT);
+        totals.addAndGet(SUM, micros);
+        long max;
+        while (micros > (max = totals.get(MAX)) && !totals.compareAndSet(MAX, max, micros)) {
+            //someone else updated it, try again
+        }
+    }
+
+    private static int bucketFor(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        //top SUB_BUCKET_BITS bits below the leading one pick the sub bucket
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the largest value which would land in the bucket
+     */
+    private static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long base = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return base + (1L << shift) - 1;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return latency in microseconds which that percentage of samples were
+     * at or below, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = totals.get(COUNT);
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target && seen > 0) {
+                return Math.min(bucketUpperBound(i), totals.get(MAX));
+            }
+        }
+        return totals.get(MAX);
+    }
+
+    public long getCount() {
+        return totals.get(COUNT);
+    }
+
+    public long getMax() {
+        return totals.get(MAX);
+    }
+
+    public long getMean() {
+        long count = totals.get(COUNT);
+        return count == 0 ? 0 : totals.get(SUM) / count;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return one line summary, in microseconds
+     */
+    public String getSummary() {
+        return String.format("%s: n=%d mean=%dus p50=%dus p99=%dus p999=%dus max=%dus",
+                name, getCount(), getMean(), getPercentile(50), getPercentile(99), getPercentile(99.9), getMax());
+    }
+
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        for (int i = 0; i < totals.length(); i++) {
+            totals.set(i, 0);
+        }
+    }
+}
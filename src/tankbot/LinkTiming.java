@@ -0,0 +1,134 @@
+package tankbot;
+
+/**
+ * Round trip time and clock offset to the other end of a connection, worked
+ * out NTP style from pings.
+ *
+ * Each ping and its pong give four timestamps: when we sent the ping
+ * (origin), when the other end got it (received), when it sent the pong back
+ * (transmit) and when we got that (returned). The round trip is the time out
+ * and back less however long the other end sat on it, and the offset is how
+ * far its clock is ahead of ours, assuming the trip took as long each way.
+ *
+ * The round trip is smoothed the way TCP does it, with the jitter being its
+ * smoothed mean deviation. The offset is taken from whichever of the last
+ * FILTER_SIZE samples had the shortest round trip, as that's the one least
+ * thrown off by queueing in one direction.
+ *
+ * Only one thread should record samples, but any thread can read the
+ * estimates.
+ *
+ * @author Luke
+ */
+public class LinkTiming {
+
+    //samples to pick the best offset from
+    private static final int FILTER_SIZE = 8;
+    //smoothing, as a shift: a new sample counts for 1/8 of the rtt and 1/4 of the jitter
+    private static final int RTT_SHIFT = 3;
+    private static final int JITTER_SHIFT = 2;
+
+    private final long[] filterRtts = new long[FILTER_SIZE];
+    private final long[] filterOffsets = new long[FILTER_SIZE];
+    private int filterNext = 0;
+
+    private volatile long samples = 0;
+    private volatile long rttMicros;
+    private volatile long jitterMicros;
+    private volatile long offsetMicros;
+    private volatile long lastRttMicros;
+
+    /**
+     * Add a sample from a ping and its pong
+     *
+     * @param originMicros when we sent the ping, on our clock
+     * @param receivedMicros when the other end got it, on its clock
+     * @param transmitMicros when the other end sent the pong, on its clock
+     * @param returnedMicros when we got the pong, on our clock
+     */
+    public void record(long originMicros, long receivedMicros, long transmitMicros, long returnedMicros) {
+        long rtt = Math.max(0, (returnedMicros - originMicros) - (transmitMicros - receivedMicros));
+        long offset = ((receivedMicros - originMicros) + (transmitMicros - returnedMicros)) / 2;
+
+        int slot = filterNext;
+        filterRtts[slot] = rtt;
+        filterOffsets[slot] = offset;
+        filterNext = (slot + 1) % FILTER_SIZE;
+        long n = samples + 1;
+        int best = 0;
+        for (int i = 1; i < Math.min(n, FILTER_SIZE); i++) {
+            if (filterRtts[i] < filterRtts[best]) {
+                best = i;
+            }
+        }
+
+        if (n == 1) {
+            rttMicros = rtt;
+            jitterMicros = rtt / 2;
+        } else {
+            long rttNow = rttMicros;
+            jitterMicros += (Math.abs(rtt - rttNow) - jitterMicros) >> JITTER_SHIFT;
+            rttMicros = rttNow + ((rtt - rttNow) >> RTT_SHIFT);
+        }
+        offsetMicros = filterOffsets[best];
+        lastRttMicros = rtt;
+        samples = n;
+    }
+
+    /**
+     * @return true once there's been at least one sample
+     */
+    public boolean hasEstimate() {
+        return samples > 0;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return smoothed round trip time
+     */
+    public long getRttMicros() {
+        return rttMicros;
+    }
+
+    /**
+     * @return the newest round trip, unsmoothed
+     */
+    public long getLastRttMicros() {
+        return lastRttMicros;
+    }
+
+    /**
+     * @return smoothed mean deviation of the round trip time
+     */
+    public long getJitterMicros() {
+        return jitterMicros;
+    }
+
+    /**
+     * @return how far the other end's clock is ahead of ours, 0 if we don't
+     * know yet
+     */
+    public long getOffsetMicros() {
+        return hasEstimate() ? offsetMicros : 0;
+    }
+
+    /**
+     * Convert a time from the other end's clock to ours
+     *
+     * @param remoteMicros
+     * @return
+     */
+    public long toLocalMicros(long remoteMicros) {
+        return remoteMicros - getOffsetMicros();
+    }
+
+    public String getSummary() {
+        if (!hasEstimate()) {
+            return "no pings answered yet";
+        }
+        return "rtt=" + rttMicros + "us jitter=" + jitterMicros + "us offset=" + offsetMicros + "us (" + samples + " samples)";
+    }
+}
@@ -0,0 +1,278 @@
+package tankbot;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stress tests a server by opening loadConnections connections and sending
+ * drive frames (or motor commands, with loadMotorCommands) down each at
+ * loadRate frames per second for loadSeconds.
+ *
+ * Everything is sent from a single thread on non-blocking sockets. If a
+ * socket won't take a frame because the server isn't keeping up, the frame is
+ * held back (and counted) rather than blocking the other connections.
+ *
+ * Only the first connection becomes the driver, so frames on the rest are
+ * ignored by the server, which is still work for it to do. Connections past
+ * the server's maxSessions are refused.
+ *
+ * Given the server (ie when it's running in the same process, with a
+ * CountingPinSink), the report includes what the server made of it: frames
+ * applied and dropped, and the latency from sending to the pins.
+ *
+ * @author Luke
+ */
+public class LoadGenerator {
+
+    //how often to send a burst of frames
+    private static final long TICK_NANOS = 1000000L;
+    //the most frames to send on one connection in one tick, in case we fall behind
+    private static final int MAX_BURST = 256;
+    private static final long REPORT_PERIOD_NANOS = 1000000000L;
+    //how long to give the server to deal with the last frames before reporting
+    private static final long DRAIN_MS = 500;
+    //keep trying to connect for this long, in case the server is still starting
+    private static final long CONNECT_RETRY_MS = 5000;
+    private static final long CONNECT_RETRY_PERIOD_MS = 100;
+
+    private final String host;
+    private final int port;
+    private final int numConnections;
+    //frames per second on each connection
+    private final double rate;
+    private final long durationNanos;
+    private final boolean motorCommands;
+    //the server, if it's in this process
+    private final Server server;
+
+    private final WireProtocol wireProtocol = new WireProtocol();
+    //as many motors as the server has, if it has the same config
+    private final int numMotors;
+    private final DriveFrame driveFrame;
+    //for throwing away whatever the server sends back
+    private final ByteBuffer discard = ByteBuffer.allocate(WireProtocol.MAX_FRAME_SIZE * 4);
+
+    /**
+     * One connection to the server
+     */
+    private static class Connection {
+
+        final SocketChannel channel;
+        //kept in write mode, holds anything the socket wasn't ready for
+        final ByteBuffer out = ByteBuffer.allocate(WireProtocol.MAX_FRAME_SIZE * 4);
+        int sequence = 0;
+        long sent = 0;
+        long heldBack = 0;
+        boolean closed = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final List<Connection> connections = new ArrayList<>();
+
+    /**
+     * @param host
+     * @param port
+     * @param properties
+     * @param server the server being loaded, if it's in this process, so the
+     * report can include its side of things. May be null.
+     */
+    public LoadGenerator(String host, int port, Properties properties, Server server) {
+        this.host = host;
+        this.port = port;
+        this.server = server;
+        this.numConnections = Integer.parseInt(properties.getProperty("loadConnections", "1"));
+        this.rate = Double.parseDouble(properties.getProperty("loadRate", "1000"));
+        this.durationNanos = Math.round(Double.parseDouble(properties.getProperty("loadSeconds", "10")) * 1e9);
+        this.motorCommands = Boolean.parseBoolean(properties.getProperty("loadMotorCommands", "false"));
+        this.numMotors = new MotorLayout(properties).getNumMotors();
+        this.driveFrame = new DriveFrame(numMotors);
+    }
+
+    /**
+     * Connect, send for loadSeconds, then print a report. Blocks until done.
+     *
+     * @throws IOException if it couldn't connect at all
+     */
+    public void run() throws IOException {
+        System.out.println("Load: " + numConnections + " connections to " + host + ":" + port + " at " + rate + " frames/s each for " + durationNanos / 1000000000.0 + "s");
+        for (int i = 0; i < numConnections; i++) {
+            SocketChannel channel = connect();
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            connections.add(new Connection(channel));
+        }
+
+        long startReceived = server == null ? 0 : server.getFramesReceived();
+        long startApplied = server == null ? 0 : server.getFramesApplied();
+        long startDropped = server == null ? 0 : server.getFramesDropped();
+
+        long start = System.nanoTime();
+        long deadline = start;
+        long nextReport = start + REPORT_PERIOD_NANOS;
+        long lastReportSent = 0;
+        long lastReportApplied = startApplied;
+        while (deadline - start < durationNanos) {
+            //how many frames each connection should have sent by now
+            long due = (long) ((deadline - start) * rate / 1e9);
+            for (Connection connection : connections) {
+                if (!connection.closed) {
+                    service(connection, due);
+                }
+            }
+
+            long now = System.nanoTime();
+            if (now - nextReport >= 0) {
+                long sent = totalSent();
+                String line = "sent " + (sent - lastReportSent) + "/s";
+                if (server != null) {
+                    long applied = server.getFramesApplied();
+                    line += ", applied " + (applied - lastReportApplied) + "/s";
+                    lastReportApplied = applied;
+                }
+                System.out.println(line);
+                lastReportSent = sent;
+                nextReport += REPORT_PERIOD_NANOS;
+            }
+
+            deadline += TICK_NANOS;
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        //let the server catch up before asking it how it did
+        try {
+            Thread.sleep(DRAIN_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Connection connection : connections) {
+            connection.channel.close();
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        long sent = totalSent();
+        long heldBack = 0;
+        int refused = 0;
+        for (Connection connection : connections) {
+            heldBack += connection.heldBack;
+            if (connection.closed) {
+                refused++;
+            }
+        }
+        System.out.println(String.format("Sent %d frames in %.1fs (%.0f/s), %d held back by full sockets, %d connections closed by the server",
+                sent, seconds, sent / seconds, heldBack, refused));
+        if (server != null) {
+            long received = server.getFramesReceived() - startReceived;
+            long applied = server.getFramesApplied() - startApplied;
+            long dropped = server.getFramesDropped() - startDropped;
+            System.out.println(String.format("Server received %d (%.0f/s), applied %d (%.0f/s), dropped %d, lost or still queued %d",
+                    received, received / seconds, applied, applied / seconds, dropped, sent - received));
+            System.out.println("Motor commands coalesced before reaching the pins: " + server.getCoalesced());
+            PwmBackend backend = server.getPwmBackend();
+            if (backend instanceof PinWriteBatch && ((PinWriteBatch) backend).getSink() instanceof CountingPinSink) {
+                CountingPinSink pins = (CountingPinSink) ((PinWriteBatch) backend).getSink();
+                System.out.println("Pins: " + pins.getWrites() + " writes, " + pins.getLines() + " pins set");
+            }
+            System.out.println(server.getTotalLatency().getSummary());
+        } else {
+            System.out.println("Run the server in this process (with -s) to see its side of things");
+        }
+    }
+
+    /**
+     * Open a connection, retrying for a while if the server isn't listening
+     * yet
+     */
+    private SocketChannel connect() throws IOException {
+        long giveUp = System.currentTimeMillis() + CONNECT_RETRY_MS;
+        while (true) {
+            try {
+                return SocketChannel.open(new InetSocketAddress(host, port));
+            } catch (ConnectException ex) {
+                if (System.currentTimeMillis() > giveUp) {
+                    throw ex;
+                }
+                try {
+                    Thread.sleep(CONNECT_RETRY_PERIOD_MS);
+                } catch (InterruptedException ie) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private long totalSent() {
+        long sent = 0;
+        for (Connection connection : connections) {
+            sent += connection.sent;
+        }
+        return sent;
+    }
+
+    /**
+     * Send a connection however many frames it's behind by, and throw away
+     * anything the server has sent
+     *
+     * @param connection
+     * @param due frames it should have sent by now
+     */
+    private void service(Connection connection, long due) {
+        try {
+            discard.clear();
+            if (connection.channel.read(discard) < 0) {
+                //probably more connections than maxSessions
+                connection.closed = true;
+                return;
+            }
+
+            long behind = Math.min(MAX_BURST, due - connection.sent - connection.heldBack);
+            for (long i = 0; i < behind; i++) {
+                ByteBuffer frame = encode(connection);
+                if (frame.remaining() > connection.out.remaining()) {
+                    connection.heldBack++;
+                } else {
+                    connection.out.put(frame);
+                    connection.sent++;
+                }
+            }
+
+            connection.out.flip();
+            connection.channel.write(connection.out);
+            connection.out.compact();
+        } catch (IOException ex) {
+            System.out.println("Load connection lost: " + ex.getMessage());
+            connection.closed = true;
+        }
+    }
+
+    /**
+     * The next frame for a connection, sweeping the motors back and forth so
+     * the server has pins to set
+     */
+    private ByteBuffer encode(Connection connection) {
+        int sequence = connection.sequence++;
+        float speed = ((sequence & 0xff) - 128) / 128f;
+        if (motorCommands) {
+            return wireProtocol.encodeMotorCommand(sequence % numMotors, false, speed, sequence);
+        }
+        for (int i = 0; i < numMotors; i++) {
+            driveFrame.set(i, false, i % 2 == 0 ? speed : -speed);
+        }
+        driveFrame.setSequence(sequence);
+        driveFrame.setCaptureMicros(Clock.nowMicros());
+        return wireProtocol.encodeDriveFrame(driveFrame);
+    }
+}
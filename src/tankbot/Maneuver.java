@@ -0,0 +1,184 @@
+package tankbot;
+
+/**
+ * A short script of timed steps for the server to run by itself, so precise
+ * maneuvers (a 90 degree spin, a timed dash) don't depend on the wifi.
+ *
+ * Each step lasts a number of microseconds and is one of:
+ *
+ * DRIVE left right - left track at left and right track at right, -1 to +1
+ *
+ * SPIN speed - left track at speed and right track at -speed, turning on the
+ * spot
+ *
+ * BRAKE strength - brake every motor
+ *
+ * WAIT - carry on doing whatever the last step was doing
+ *
+ * The tracks are turned into a stick position and mixed into every motor
+ * through the MotorLayout, the same as the stick would be, so with the
+ * default layout the left track is motor 0 and the right track motor 1. Any
+ * motor that only follows the twist (eg a turret) is stopped.
+ *
+ * Can be written as text, eg "spin 0.8 450; wait 100; drive 1 1 1000; brake
+ * 1 200", one step per semicolon with the duration last, in milliseconds
+ * (fractions allowed).
+ *
+ * @author Luke
+ */
+public class Maneuver {
+
+    public static final byte DRIVE = 1;
+    public static final byte SPIN = 2;
+    public static final byte BRAKE = 3;
+    public static final byte WAIT = 4;
+
+    //as many as fit in a frame, with room to spare
+    public static final int MAX_STEPS = 64;
+
+    private int sequence;
+    private int numSteps = 0;
+    private final byte[] ops = new byte[MAX_STEPS];
+    private final int[] durationMicros = new int[MAX_STEPS];
+    //meaning depends on the op, see getLeft() and getRight()
+    private final float[] left = new float[MAX_STEPS];
+    private final float[] right = new float[MAX_STEPS];
+
+    public Maneuver() {
+    }
+
+    /**
+     * Copy another maneuver
+     *
+     * @param other
+     */
+    public Maneuver(Maneuver other) {
+        this.sequence = other.sequence;
+        this.numSteps = other.numSteps;
+        System.arraycopy(other.ops, 0, this.ops, 0, numSteps);
+        System.arraycopy(other.durationMicros, 0, this.durationMicros, 0, numSteps);
+        System.arraycopy(other.left, 0, this.left, 0, numSteps);
+        System.arraycopy(other.right, 0, this.right, 0, numSteps);
+    }
+
+    public void clear() {
+        this.numSteps = 0;
+    }
+
+    /**
+     * Add a step
+     *
+     * @param op DRIVE, SPIN, BRAKE or WAIT
+     * @param left speed of the left track for DRIVE, speed for SPIN,
+     * strength for BRAKE
+     * @param right speed of the right track for DRIVE, otherwise unused
+     * @param durationMicros
+     */
+    public void add(byte op, float left, float right, int durationMicros) {
+        if (numSteps >= MAX_STEPS) {
+            throw new IllegalArgumentException("Maneuvers can only have " + MAX_STEPS + " steps");
+        }
+        if (op < DRIVE || op > WAIT) {
+            throw new IllegalArgumentException("Unknown maneuver step " + op);
+        }
+        if (durationMicros < 0) {
+            throw new IllegalArgumentException("Maneuver steps can't take negative time");
+        }
+        this.ops[numSteps] = op;
+        this.left[numSteps] = left;
+        this.right[numSteps] = right;
+        this.durationMicros[numSteps] = durationMicros;
+        numSteps++;
+    }
+
+    /**
+     * Read a maneuver written as text, eg "spin 0.8 450; wait 100"
+     *
+     * @param script
+     * @return
+     * @throws IllegalArgumentException if it doesn't make sense
+     */
+    public static Maneuver parse(String script) {
+        Maneuver maneuver = new Maneuver();
+        for (String step : script.split(";")) {
+            String[] words = step.trim().split("\\s+");
+            if (words.length == 0 || words[0].isEmpty()) {
+                continue;
+            }
+            String name = words[0].toLowerCase();
+            int expected;
+            byte op;
+            switch (name) {
+                case "drive":
+                    op = DRIVE;
+                    expected = 4;
+                    break;
+                case "spin":
+                    op = SPIN;
+                    expected = 3;
+                    break;
+                case "brake":
+                    op = BRAKE;
+                    expected = 3;
+                    break;
+                case "wait":
+                    op = WAIT;
+                    expected = 2;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown maneuver step \"" + words[0] + "\"");
+            }
+            if (words.length != expected) {
+                throw new IllegalArgumentException("Maneuver step \"" + step.trim() + "\" should have " + (expected - 1) + " numbers");
+            }
+            try {
+                float a = expected > 2 ? Float.parseFloat(words[1]) : 0;
+                float b = expected > 3 ? Float.parseFloat(words[2]) : 0;
+                int micros = (int) Math.round(Double.parseDouble(words[expected - 1]) * 1000);
+                maneuver.add(op, a, b, micros);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Maneuver step \"" + step.trim() + "\" has a bad number");
+            }
+        }
+        return maneuver;
+    }
+
+    public int getSequence() {
+        return this.sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    public int getNumSteps() {
+        return this.numSteps;
+    }
+
+    public byte getOp(int step) {
+        return this.ops[step];
+    }
+
+    public int getDurationMicros(int step) {
+        return this.durationMicros[step];
+    }
+
+    public float getLeft(int step) {
+        return this.left[step];
+    }
+
+    public float getRight(int step) {
+        return this.right[step];
+    }
+
+    /**
+     * @return how long the whole thing takes
+     */
+    public long getTotalMicros() {
+        long total = 0;
+        for (int i = 0; i < numSteps; i++) {
+            total += durationMicros[i];
+        }
+        return total;
+    }
+}
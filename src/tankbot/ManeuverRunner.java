@@ -0,0 +1,121 @@
+package tankbot;
+
+/**
+ * Plays a Maneuver, setting the motion profiler's targets as each step comes
+ * due. Steps are timed against absolute deadlines from when the maneuver
+ * started, so they don't drift however late each one is noticed.
+ *
+ * Each step sets every motor in the layout, mixing the tracks in through it
+ * like the stick (see Maneuver), so it works however many motors there are.
+ *
+ * Doesn't have a thread of its own, whoever is driving the profiler should
+ * call advance() at (or just after) getNextDeadline(). Not thread safe.
+ *
+ * @author Luke
+ */
+public class ManeuverRunner {
+
+    private final MotionProfiler profiler;
+    private final MotorLayout layout;
+
+    private Maneuver maneuver;
+    private int nextStep;
+    private long nextStepNanos;
+
+    public ManeuverRunner(MotionProfiler profiler, MotorLayout layout) {
+        this.profiler = profiler;
+        this.layout = layout;
+    }
+
+    /**
+     * Start a maneuver now, abandoning any already running
+     *
+     * @param maneuver
+     * @param nowNanos
+     */
+    public void start(Maneuver maneuver, long nowNanos) {
+        this.maneuver = maneuver;
+        this.nextStep = 0;
+        this.nextStepNanos = nowNanos;
+    }
+
+    /**
+     * Stop running the maneuver, leaving the targets wherever they were
+     */
+    public void cancel() {
+        this.maneuver = null;
+    }
+
+    public boolean isRunning() {
+        return this.maneuver != null;
+    }
+
+    /**
+     * @return the maneuver running, or null
+     */
+    public Maneuver getManeuver() {
+        return this.maneuver;
+    }
+
+    /**
+     * @return System.nanoTime() at which the next step is due, only
+     * meaningful if running
+     */
+    public long getNextDeadline() {
+        return this.nextStepNanos;
+    }
+
+    /**
+     * Start every step which is due. Once the last step is over, the motors
+     * are set to coast to a stop.
+     *
+     * @param nowNanos
+     * @return true if any targets were changed
+     */
+    public boolean advance(long nowNanos) {
+        boolean changed = false;
+        while (this.maneuver != null && nowNanos - this.nextStepNanos >= 0) {
+            if (this.nextStep >= this.maneuver.getNumSteps()) {
+                this.profiler.stopAll();
+                this.maneuver = null;
+                return true;
+            }
+            int step = this.nextStep++;
+            float left = this.maneuver.getLeft(step);
+            switch (this.maneuver.getOp(step)) {
+                case Maneuver.DRIVE:
+                    float right = this.maneuver.getRight(step);
+                    //the stick position which would drive the tracks like that
+                    setStick((left - right) / 2, (left + right) / 2);
+                    break;
+                case Maneuver.SPIN:
+                    setStick(left, 0);
+                    break;
+                case Maneuver.BRAKE:
+                    for (int m = 0; m < this.layout.getNumMotors(); m++) {
+                        this.profiler.setTarget(m, true, left);
+                    }
+                    break;
+                case Maneuver.WAIT:
+                    //carry on as we are
+                    break;
+            }
+            this.nextStepNanos += this.maneuver.getDurationMicros(step) * 1000L;
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Set every motor to what the stick would set it to, with no twist
+     *
+     * @param x
+     * @param y
+     */
+    private void setStick(float x, float y) {
+        for (int m = 0; m < this.layout.getNumMotors(); m++) {
+            float speed = this.layout.getMixX(m) * x + this.layout.getMixY(m) * y;
+            this.profiler.setTarget(m, false, Math.max(-1, Math.min(1, speed)));
+        }
+    }
+}
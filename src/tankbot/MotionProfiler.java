@@ -0,0 +1,131 @@
+package tankbot;
+
+/**
+ * Moves each motor smoothly towards the latest speed asked for, rather than
+ * jumping straight to it, so the client doesn't have to send at a high rate
+ * for smooth driving and a lost frame doesn't show up as a jerk.
+ *
+ * Call step() at a fixed rate. Each step, every motor moves towards its
+ * target by no more than maxAcceleration (speeding up) or maxDeceleration
+ * (slowing down) full speeds per second. Reversing slows to a stop first and
+ * then speeds up the other way. A limit of zero means no limit.
+ *
+ * Braking isn't ramped: a brake is applied the moment it's asked for, and
+ * coming off the brake starts again from stopped.
+ *
+ * Works on the actuator's current state, so anything else which sets the
+ * motors (like the watchdog) is ramped on from wherever it left them. Not
+ * thread safe, only use it on the actuator's thread.
+ *
+ * @author Luke
+ */
+public class MotionProfiler {
+
+    private final Actuator actuator;
+    //full speeds per second
+    private final float maxAcceleration;
+    private final float maxDeceleration;
+
+    private final float[] targetSpeeds;
+    private final boolean[] targetBrakes;
+
+    /**
+     * @param actuator what to move
+     * @param maxAcceleration full speeds per second when speeding up, 0 for
+     * no limit
+     * @param maxDeceleration full speeds per second when slowing down, 0 for
+     * no limit
+     */
+    public MotionProfiler(Actuator actuator, float maxAcceleration, float maxDeceleration) {
+        this.actuator = actuator;
+        this.maxAcceleration = maxAcceleration;
+        this.maxDeceleration = maxDeceleration;
+        this.targetSpeeds = new float[actuator.getNumMotors()];
+        this.targetBrakes = new boolean[actuator.getNumMotors()];
+    }
+
+    /**
+     * Set where a motor should end up
+     *
+     * @param motor
+     * @param brake
+     * @param speed -1 to +1, or the brake strength if braking
+     */
+    public void setTarget(int motor, boolean brake, float speed) {
+        if (motor < 0 || motor >= targetSpeeds.length) {
+            return;
+        }
+        this.targetBrakes[motor] = brake;
+        this.targetSpeeds[motor] = speed;
+    }
+
+    /**
+     * Aim for every motor coasting to a stop
+     */
+    public void stopAll() {
+        for (int i = 0; i < targetSpeeds.length; i++) {
+            setTarget(i, false, 0);
+        }
+    }
+
+    /**
+     * @return true if every motor is where it's meant to be, so there's no
+     * need to keep stepping
+     */
+    public boolean isSettled() {
+        for (int i = 0; i < targetSpeeds.length; i++) {
+            if (actuator.getBrake(i) != targetBrakes[i] || actuator.getSpeed(i) != targetSpeeds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move every motor one step closer to its target. Pins aren't written
+     * until the actuator is flushed.
+     *
+     * @param seconds time since the last step
+     * @return true if any motor was changed
+     */
+    public boolean step(float seconds) {
+        boolean changed = false;
+        for (int i = 0; i < targetSpeeds.length; i++) {
+            float target = targetSpeeds[i];
+            boolean brake = actuator.getBrake(i);
+            float speed = actuator.getSpeed(i);
+
+            if (targetBrakes[i]) {
+                //never hold off braking
+                if (!brake || speed != target) {
+                    actuator.setMotor(i, true, target);
+                    changed = true;
+                }
+                continue;
+            }
+            if (brake) {
+                //coming off the brake, start from stopped
+                speed = 0;
+            } else if (speed == target) {
+                continue;
+            }
+
+            boolean reversing = speed != 0 && Math.signum(target) != Math.signum(speed);
+            boolean slowing = reversing || Math.abs(target) < Math.abs(speed);
+            float rate = slowing ? maxDeceleration : maxAcceleration;
+            float limit = rate * seconds;
+            float next;
+            if (rate <= 0) {
+                next = target;
+            } else if (reversing) {
+                //stop before going the other way
+                next = Math.abs(speed) <= limit ? 0 : speed - Math.signum(speed) * limit;
+            } else {
+                next = speed + Math.max(-limit, Math.min(limit, target - speed));
+            }
+            actuator.setMotor(i, false, next);
+            changed = true;
+        }
+        return changed;
+    }
+}
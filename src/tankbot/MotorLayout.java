@@ -0,0 +1,150 @@
+package tankbot;
+
+import java.util.Properties;
+
+/**
+ * How many motors there are, which GPIO pins drive each one's H-bridge, and
+ * how the stick mixes into each one, all from the config. The client and the
+ * server should be given the same config so they agree on the motors.
+ *
+ * motors is how many there are (default 2). For each motor N from 0:
+ *
+ * motorNPins=enable,in1,in2 are the GPIO pins for its H-bridge. Motors 0 and
+ * 1 default to the tank's tracks, any more have to be set.
+ *
+ * motorNMix=x,y,z is how much of each stick axis goes into the motor, so
+ * 1,1,0 is forwards and right, -1,1,0 forwards and left, and 0,0,1 just the
+ * twist (eg for a turret). Defaults to the tracks for motors 0 and 1 and
+ * nothing for any more.
+ *
+ * Everything is held in arrays indexed by motor, so anything that deals with
+ * every motor can just loop over them.
+ *
+ * @author Luke
+ */
+public class MotorLayout {
+
+    //more than the pi has pins for, and comfortably fits in a frame
+    public static final int MAX_MOTORS = 16;
+
+    //this maps which GPIO pins on the Pi control which inputs on the H-bridges for each motor
+    private static final String[] DEFAULT_PINS = {"4,17,18", "21,22,23"};
+    /*
+     each track maps to an imaginary axis at 45deg to x,y. this way forwards and
+     backwards both motors get the same signal, but left or right each motor
+     gets the inverse so we spin on the spot
+     */
+    private static final String[] DEFAULT_MIX = {"1,1,0", "-1,1,0"};
+    private static final String NO_MIX = "0,0,0";
+
+    private final int numMotors;
+    private final int[] enablePins, in1Pins, in2Pins;
+    private final float[] mixX, mixY, mixZ;
+
+    /**
+     * @param properties
+     * @throws IllegalArgumentException if the config doesn't make sense
+     */
+    public MotorLayout(Properties properties) {
+        this.numMotors = Integer.parseInt(properties.getProperty("motors", String.valueOf(DEFAULT_PINS.length)));
+        if (numMotors < 1 || numMotors > MAX_MOTORS) {
+            throw new IllegalArgumentException("motors must be 1 to " + MAX_MOTORS + ", got " + numMotors);
+        }
+        this.enablePins = new int[numMotors];
+        this.in1Pins = new int[numMotors];
+        this.in2Pins = new int[numMotors];
+        this.mixX = new float[numMotors];
+        this.mixY = new float[numMotors];
+        this.mixZ = new float[numMotors];
+        for (int m = 0; m < numMotors; m++) {
+            String pinsKey = "motor" + m + "Pins";
+            String pins = properties.getProperty(pinsKey, m < DEFAULT_PINS.length ? DEFAULT_PINS[m] : null);
+            if (pins == null) {
+                throw new IllegalArgumentException(pinsKey + " must be set");
+            }
+            String[] p = split(pinsKey, pins);
+            enablePins[m] = Integer.parseInt(p[0]);
+            in1Pins[m] = Integer.parseInt(p[1]);
+            in2Pins[m] = Integer.parseInt(p[2]);
+
+            String mixKey = "motor" + m + "Mix";
+            String[] mix = split(mixKey, properties.getProperty(mixKey, m < DEFAULT_MIX.length ? DEFAULT_MIX[m] : NO_MIX));
+            mixX[m] = Float.parseFloat(mix[0]);
+            mixY[m] = Float.parseFloat(mix[1]);
+            mixZ[m] = Float.parseFloat(mix[2]);
+        }
+        checkPinsUnique();
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return the three comma separated parts of value
+     */
+    private static String[] split(String key, String value) {
+        String[] parts = value.trim().split("\\s*,\\s*");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException(key + " needs three comma separated values, got \"" + value + "\"");
+        }
+        return parts;
+    }
+
+    /**
+     * Two motors on one pin would fight each other
+     */
+    private void checkPinsUnique() {
+        int[] all = new int[numMotors * 3];
+        for (int m = 0; m < numMotors; m++) {
+            all[m * 3] = enablePins[m];
+            all[m * 3 + 1] = in1Pins[m];
+            all[m * 3 + 2] = in2Pins[m];
+        }
+        for (int i = 0; i < all.length; i++) {
+            for (int j = i + 1; j < all.length; j++) {
+                if (all[i] == all[j]) {
+                    throw new IllegalArgumentException("GPIO " + all[i] + " is used by motor " + i / 3 + " and motor " + j / 3);
+                }
+            }
+        }
+    }
+
+    public int getNumMotors() {
+        return numMotors;
+    }
+
+    public int getEnablePin(int motor) {
+        return enablePins[motor];
+    }
+
+    public int getIn1Pin(int motor) {
+        return in1Pins[motor];
+    }
+
+    public int getIn2Pin(int motor) {
+        return in2Pins[motor];
+    }
+
+    /**
+     * @param motor
+     * @return how much of the stick's x goes into the motor
+     */
+    public float getMixX(int motor) {
+        return mixX[motor];
+    }
+
+    /**
+     * @param motor
+     * @return how much of the stick's y goes into the motor
+     */
+    public float getMixY(int motor) {
+        return mixY[motor];
+    }
+
+    /**
+     * @param motor
+     * @return how much of the stick's twist goes into the motor
+     */
+    public float getMixZ(int motor) {
+        return mixZ[motor];
+    }
+}
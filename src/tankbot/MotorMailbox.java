@@ -0,0 +1,176 @@
+package tankbot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the newest state of each motor from the thread reading the network to
+ * the thread setting the pins, without either ever waiting for the other.
+ *
+ * There's one slot per motor. Posting overwrites whatever is in the slot, so
+ * if the reader hasn't got round to a command before a newer one arrives, the
+ * old one is never applied (and is counted as coalesced). The tank only ever
+ * acts on the freshest set-point, however far behind the pins get, rather
+ * than replaying a backlog.
+ *
+ * Each slot packs the speed, brake and a pending flag into one long, so
+ * posting and taking are single atomic operations and nothing is allocated.
+ *
+ * Everything posted between beginFrame() and endFrame() is one frame, and
+ * take() only ever hands over whole frames, so the reader can't pick up one
+ * motor from one frame and the next from another. It's a sequence lock: the
+ * frame version is odd while a frame is being posted, and take() tries again
+ * if it changed while the slots were being read.
+ *
+ * Meant for one thread posting and one thread taking.
+ *
+ * @author Luke
+ */
+public class MotorMailbox {
+
+    //returned by take() if there's nothing new
+    public static final long NOTHING = 0;
+
+    private static final long PENDING = 1L << 33;
+    private static final long BRAKE = 1L << 32;
+    private static final long SPEED_BITS = 0xffffffffL;
+
+    private final AtomicLongArray slots;
+    //odd while a frame is being posted, only written by the posting thread
+    private volatile int frameVersion = 0;
+    private final AtomicLong coalesced = new AtomicLong();
+    //the thread taking from the mailbox, to wake when something is posted
+    private volatile Thread reader;
+
+    public MotorMailbox(int numMotors) {
+        this.slots = new AtomicLongArray(numMotors);
+    }
+
+    public int getNumMotors() {
+        return this.slots.length();
+    }
+
+    /**
+     * Start posting a frame. Nothing posted until endFrame() is taken.
+     */
+    public void beginFrame() {
+        this.frameVersion++;
+    }
+
+    /**
+     * Finish posting a frame, and wake the reader
+     */
+    public void endFrame() {
+        this.frameVersion++;
+        signal();
+    }
+
+    /**
+     * Replace whatever is waiting for a motor, between beginFrame() and
+     * endFrame()
+     *
+     * @param motor
+     * @param brake
+     * @param speed
+     */
+    public void post(int motor, boolean brake, float speed) {
+        if (motor < 0 || motor >= slots.length()) {
+            return;
+        }
+        long value = PENDING | pack(brake, speed);
+        if ((slots.getAndSet(motor, value) & PENDING) != 0) {
+            //the last one never got applied
+            coalesced.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wake the reader, if it's waiting
+     */
+    public void signal() {
+        Thread waiting = this.reader;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Take the newest state posted for every motor which hasn't been taken
+     * already, all from the same frame
+     *
+     * @param values filled in with packed state to pass to isBrake() and
+     * getSpeed() for each motor, or NOTHING for motors with nothing new
+     * @return true if anything was taken
+     */
+    public boolean take(long[] values) {
+        while (true) {
+            int before = this.frameVersion;
+            if ((before & 1) == 0) {
+                for (int i = 0; i < slots.length(); i++) {
+                    values[i] = slots.get(i);
+                }
+                if (this.frameVersion == before) {
+                    break;
+                }
+            }
+            //a frame is being posted, it'll only be a moment
+            Thread.yield();
+        }
+        boolean taken = false;
+        for (int i = 0; i < slots.length(); i++) {
+            long value = values[i];
+            if ((value & PENDING) == 0) {
+                values[i] = NOTHING;
+                continue;
+            }
+            //if a newer frame has been posted since, leave it pending for next time
+            slots.compareAndSet(i, value, value & ~PENDING);
+            taken = true;
+        }
+        return taken;
+    }
+
+    /**
+     * Wait until something is posted, or the timeout runs out. May return
+     * early for no reason, so check what's there either way.
+     *
+     * @param timeoutNanos
+     */
+    public void await(long timeoutNanos) {
+        this.reader = Thread.currentThread();
+        for (int i = 0; i < slots.length(); i++) {
+            if ((slots.get(i) & PENDING) != 0) {
+                return;
+            }
+        }
+        LockSupport.parkNanos(this, timeoutNanos);
+    }
+
+    /**
+     * Pack the state of a motor into a long, the same way the mailbox does,
+     * for anyone else who needs to hand one between threads atomically
+     *
+     * @param brake
+     * @param speed
+     * @return state to pass to isBrake() and getSpeed()
+     */
+    public static long pack(boolean brake, float speed) {
+        return (brake ? BRAKE : 0) | (Float.floatToRawIntBits(speed) & SPEED_BITS);
+    }
+
+    public static boolean isBrake(long value) {
+        return (value & BRAKE) != 0;
+    }
+
+    public static float getSpeed(long value) {
+        return Float.intBitsToFloat((int) (value & SPEED_BITS));
+    }
+
+    /**
+     * @return commands which were replaced by a newer one before being taken
+     */
+    public long getCoalesced() {
+        return this.coalesced.get();
+    }
+}
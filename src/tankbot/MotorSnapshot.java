@@ -0,0 +1,83 @@
+package tankbot;
+
+/**
+ * A consistent copy of everything MotorState published in one update(), for
+ * reading on any thread. Fill one with MotorState.read().
+ *
+ * Mutable so each reader can keep one and reuse it, rather than allocating a
+ * new one every time. Only the thread which owns it should touch it.
+ *
+ * @author Luke
+ */
+public class MotorSnapshot {
+
+    private final float[] speeds;
+    private final boolean[] brakes;
+    private float maxSpeed;
+    private long captureMicros;
+    //which update() this came from, goes up by 2 every update
+    private int version;
+
+    /**
+     * @param numMotors
+     */
+    public MotorSnapshot(int numMotors) {
+        this.speeds = new float[numMotors];
+        this.brakes = new boolean[numMotors];
+    }
+
+    void set(int motor, boolean brake, float speed) {
+        this.brakes[motor] = brake;
+        this.speeds[motor] = speed;
+    }
+
+    void setMaxSpeed(float maxSpeed) {
+        this.maxSpeed = maxSpeed;
+    }
+
+    void setCaptureMicros(long captureMicros) {
+        this.captureMicros = captureMicros;
+    }
+
+    void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getNumMotors() {
+        return this.speeds.length;
+    }
+
+    /**
+     * @param motor
+     * @return -1 to +1, or the brake strength if braking
+     */
+    public float getSpeed(int motor) {
+        return this.speeds[motor];
+    }
+
+    public boolean getBrake(int motor) {
+        return this.brakes[motor];
+    }
+
+    /**
+     * @return the maximum speed allowed by the throttle
+     */
+    public float getMaxSpeed() {
+        return this.maxSpeed;
+    }
+
+    /**
+     * @return when the inputs were read, from Clock.nowMicros()
+     */
+    public long getCaptureMicros() {
+        return this.captureMicros;
+    }
+
+    /**
+     * @return which update this came from, so a reader can tell if anything
+     * has changed since its last copy
+     */
+    public int getVersion() {
+        return this.version;
+    }
+}
@@ -1,8 +1,11 @@
 package tankbot;
 
-import LukesBits.Vector;
 import java.awt.event.KeyEvent;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import net.java.games.input.Component;
 import net.java.games.input.Controller;
 
@@ -10,30 +13,118 @@ import net.java.games.input.Controller;
  *
  * @author Luke
  *
- * Keeps track of desired state of all motors. getMotorCommand() provides a
- * struct-like object which specifies the desired state of a specific motor
+ * Keeps track of desired state of all motors. read() copies the desired
+ * state of every motor into a MotorSnapshot. There are deliberately no getters
+ * for single values, as two of them could come from different updates.
  *
  * Uses jinput for joystick stuff
  *
  * Call update() regularly to ensure that the state of the motors reflects the
- * state of the joystick.
+ * state of the joystick. update() doesn't allocate anything, so it can be
+ * called as often as we like without making garbage.
+ *
+ * update() must only ever be called from one thread, which is the only one
+ * that writes the motor state. It publishes everything from one update
+ * together under a sequence lock: the version is made odd, the state
+ * written, then the version made even again. read() copies the state into a
+ * MotorSnapshot and checks the version didn't change meanwhile, trying again
+ * if it did, so readers on any thread never see half of one update and half
+ * of another, and never block the writer or each other. All the published
+ * state is read and written atomically (it's packed into an AtomicLongArray),
+ * which is what makes that safe in java without locks.
+ *
+ * Keys and the UI's throttle can be set from any thread (eg swing's), they're
+ * picked up by the next update().
+ *
+ * Given a JoystickInput, update() reads the latest values from it rather than
+ * polling the joystick itself, and the capture time is when the input thread
+ * read the newest event, not when update() happened to run.
+ *
+ * The joystick can be swapped with setJoystick() from any thread while
+ * update() is running, eg when one is plugged in. Which component is which is
+ * only worked out once for each kind of joystick, then remembered. Without a
+ * JoystickInput, update() is the only thing polling the joystick, so it's
+ * also what notices it has gone.
  */
 public class MotorState {
 
     //absolute max is set in the config file, throttle can only adjust up to absolutemax
     private final float absoluteMaxSpeed, maxBrake;
-    private float maxSpeed;
-    private final double m1ForwardsAdjust, m1BackwardsAdjust, m0ForwardsAdjust, m0BackwardsAdjust;
-    private final Controller joystick;
-    private Component xAxis, yAxis, zAxis, throttle, handbrake, trigger;
-    private final float deadZone;
-    private final Properties properties;
+    //set from the UI when there's no throttle on the joystick
+    private volatile float requestedMaxSpeed;
+    //stick, throttle and motor response, see Calibration
+    private final Calibration calibration;
+
+    /**
+     * A joystick and everything needed to read it, swapped as a whole
+     */
+    private static final class Binding {
+
+        final Controller joystick;
+        final Component[] components;
+        final JoystickMapping mapping;
+        //reads the joystick on its own thread, or null to poll it in update()
+        final JoystickInput input;
+        //called by update() if polling the joystick fails, or null
+        final Runnable lostListener;
+        //only used by update()
+        boolean lost = false;
+
+        Binding(Controller joystick, JoystickMapping mapping, JoystickInput input, Runnable lostListener) {
+            this.joystick = joystick;
+            this.components = joystick.getComponents();
+            this.mapping = mapping;
+            this.input = input;
+            this.lostListener = lostListener;
+        }
 
-    private final boolean invertX, invertY, invertZ;
+        float read(int index) {
+            return input == null ? components[index].getPollData() : input.getValue(index);
+        }
+    }
 
-    private MotorCommand m0Command = new MotorCommand(0, false, 0), m1Command = new MotorCommand(1, false, 0);
+    //null if there's no joystick to use
+    private volatile Binding binding;
+    //component mapping for each kind of joystick seen so far
+    private final Map<String, JoystickMapping> mappings = new ConcurrentHashMap<>();
+    //the binding the fields below belong to, only used by update()
+    private Binding updateBinding;
+    //handbrake presses seen by update(), so a quick tap still counts
+    private int handbrakePresses;
+    //newest input event used by update()
+    private long lastEventMicros;
+    private final Properties properties;
+
+    //how many motors and how the stick mixes into each, from the config
+    private final int numMotors;
+    private final float[] mixX, mixY, mixZ;
+    //the state update() is working out, only used by update()
+    private final float[] speeds;
+    private final boolean[] brakes;
+
+    //latest state of each motor packed by MotorMailbox.pack(), then the max
+    //speed's bits and the capture time, only written by update()
+    private final AtomicLongArray published;
+    private final int maxSpeedSlot;
+    private final int captureSlot;
+    //odd while update() is publishing
+    private volatile int version = 0;
+
+    //keys held down, one bit each, set from the key dispatcher and read by update()
+    private final AtomicInteger keys = new AtomicInteger();
+    private static final int KEY_FORWARDS = 1, KEY_BACKWARDS = 2, KEY_LEFT = 4, KEY_RIGHT = 8,
+            KEY_ANTICLOCKWISE = 16, KEY_CLOCKWISE = 32, KEY_STOP = 64;
 
     public MotorState(Controller _joystick, Properties _properties) {
+        this(_joystick, _properties, null);
+    }
+
+    /**
+     * @param _joystick
+     * @param _properties
+     * @param _input reading events from _joystick, or null to poll it
+     */
+    public MotorState(Controller _joystick, Properties _properties, JoystickInput _input) {
 
         properties = _properties;
 
@@ -41,297 +132,301 @@ public class MotorState {
 
         absoluteMaxSpeed = Float.parseFloat(properties.getProperty("maxSpeed", "1"));
 
-        //assume full throttle to begin
-        this.maxSpeed = absoluteMaxSpeed;
+        MotorLayout layout = new MotorLayout(properties);
+        numMotors = layout.getNumMotors();
+        mixX = new float[numMotors];
+        mixY = new float[numMotors];
+        mixZ = new float[numMotors];
+        for (int i = 0; i < numMotors; i++) {
+            mixX[i] = layout.getMixX(i);
+            mixY[i] = layout.getMixY(i);
+            mixZ[i] = layout.getMixZ(i);
+        }
+        speeds = new float[numMotors];
+        brakes = new boolean[numMotors];
+        published = new AtomicLongArray(numMotors + 2);
+        maxSpeedSlot = numMotors;
+        captureSlot = numMotors + 1;
 
-        //how much to adjust the motors so they are the same speed as each other
-        m1ForwardsAdjust = 1;
-        m1BackwardsAdjust = 1;
-        m0ForwardsAdjust = 1;
-        m0BackwardsAdjust = 1;
+        //assume full throttle to begin
+        this.requestedMaxSpeed = absoluteMaxSpeed;
+        publish(0, absoluteMaxSpeed);
 
-        deadZone = Float.parseFloat(properties.getProperty("deadzone", "0.1"));
+        //deadzone, throttle, and how much to adjust the motors so they are the same speed as each other
+        calibration = new Calibration(properties, numMotors, absoluteMaxSpeed);
 
-        joystick = _joystick;
         //TODO if this is ever distributed beyond me
         //have a fully configurable joystick options
+        setJoystick(_joystick, _input);
 
-        //defaults are all set up for windows 7 and an xbox controller
-        if (joystick != null) {
-            Component[] components = joystick.getComponents();
+    }
 
-            for (Component component : components) {
-                if (component.isAnalog() && component.getIdentifier().getName().equalsIgnoreCase(properties.getProperty("xAxis", "x"))) {
-                    xAxis = component;
-                }
-                if (component.isAnalog() && component.getIdentifier().getName().equalsIgnoreCase(properties.getProperty("yAxis", "y"))) {
-                    yAxis = component;
-                }
-                if (component.isAnalog() && component.getIdentifier().getName().equalsIgnoreCase(properties.getProperty("zAxis", "rz"))) {
-                    //this is if the stick is being rotated
-                    zAxis = component;
-                }
-                if (component.isAnalog() && component.getIdentifier().getName().equalsIgnoreCase(properties.getProperty("throttle", "slider"))) {
-                    throttle = component;
-                }
-                if (component.getIdentifier().getName().equals(properties.getProperty("trigger", "0"))) {
-                    trigger = component;
-                }
-                if (component.getIdentifier().getName().equals(properties.getProperty("handbreak", "1"))) {
-                    handbrake = component;
-                }
-            }
-        }
+    /**
+     * Use a different joystick, or none. Can be called from any thread, the
+     * next update() will use it.
+     *
+     * @param joystick null if there isn't one
+     * @param input reading events from joystick, or null for update() to poll
+     * it
+     */
+    public void setJoystick(Controller joystick, JoystickInput input) {
+        setJoystick(joystick, input, null);
+    }
 
-        if (handbrake == null || trigger == null) {
-            System.err.println("Could not find trigger or handbreak");
+    /**
+     * Use a different joystick, or none. Can be called from any thread, the
+     * next update() will use it.
+     *
+     * @param joystick null if there isn't one
+     * @param input reading events from joystick, or null for update() to poll
+     * it
+     * @param lostListener called once by update() if polling the joystick
+     * fails, only used without an input (which reports that itself)
+     */
+    public void setJoystick(Controller joystick, JoystickInput input, Runnable lostListener) {
+        if (joystick == null) {
+            this.binding = null;
+            return;
         }
-        if (xAxis == null || yAxis == null) {
-            System.err.println("Could not find x and y axis");
+        String key = JoystickMapping.getKey(joystick);
+        JoystickMapping mapping = mappings.get(key);
+        if (mapping == null || !mapping.fits(joystick)) {
+            mapping = JoystickMapping.create(joystick, properties);
+            mappings.put(key, mapping);
         }
-
-        if (zAxis == null) {
-            System.err.println("Could not find z axis");
+        if (!mapping.canDrive()) {
+            System.err.println("Can't drive with " + joystick.getName());
+            this.binding = null;
+            return;
         }
-
-        //linux/joydev needs to be true, win7 
-        this.invertX = Boolean.parseBoolean(properties.getProperty("invertX", "false"));
-        //needs to be true on both
-        this.invertY = Boolean.parseBoolean(properties.getProperty("invertY", "true"));
-        //false on both
-        this.invertZ = Boolean.parseBoolean(properties.getProperty("invertZ", "false"));
-
+        this.binding = new Binding(joystick, mapping, input, lostListener);
     }
 
-    private boolean forwards, backwards, left, right, anticlockwise, clockwise, stop;
-
     /**
-     * Grab latest data from joystick and update internal state
+     * Grab latest data from joystick and update internal state. Only ever
+     * call this from one thread.
      */
     public void update() {
 
-        double m0Speed = 0;
-        //default to not break and 0 speed so they should coast
-        boolean m0Brake = false;
+        long captureMicros = Clock.nowMicros();
+        //every key as of now, so a key changing part way through can't mix two states
+        int held = this.keys.get();
+        float maxSpeed = this.requestedMaxSpeed;
+        Binding b = this.binding;
+        if (b != updateBinding) {
+            //a different joystick, forget about the old one
+            updateBinding = b;
+            lastEventMicros = 0;
+            handbrakePresses = b == null || b.input == null || !b.mapping.hasHandbrake() ? 0 : b.input.getPresses(b.mapping.handbrake);
+        }
 
+        //the stick, or what the keys stand in for
+        float x = 0, y = 0, z = 0;
+        //how far a full stick goes
+        float scale = absoluteMaxSpeed;
         //if break is true then the speed is the break strength
-        boolean keypressed = false;
-        double m1Speed = 0;
-        boolean m1Brake = false;
+        boolean brake = false;
+        boolean keypressed = true;
         //really crude for now
-        if (stop) {
-            m0Speed = maxBrake;
-            m1Speed = maxBrake;
-            m0Brake = true;
-            m1Brake = true;
-            keypressed = true;
-        } else if (forwards) {
-            m0Speed = absoluteMaxSpeed;
-            m1Speed = absoluteMaxSpeed;
-            keypressed = true;
-        } else if (backwards) {
-            m0Speed = -absoluteMaxSpeed;
-            m1Speed = -absoluteMaxSpeed;
-            keypressed = true;
-        } else if (left) {
-            m1Speed = absoluteMaxSpeed;
-            keypressed = true;
-        } else if (right) {
-            m0Speed = absoluteMaxSpeed;
-            keypressed = true;
-        } else if (clockwise) {
-            m1Speed = -absoluteMaxSpeed;
-            m0Speed = absoluteMaxSpeed;
-            keypressed = true;
-        } else if (anticlockwise) {
-            m1Speed = absoluteMaxSpeed;
-            m0Speed = -absoluteMaxSpeed;
-            m0Brake = false;
-            m1Brake = false;
-            keypressed = true;
+        if ((held & KEY_STOP) != 0) {
+            brake = true;
+        } else if ((held & KEY_FORWARDS) != 0) {
+            y = 1;
+        } else if ((held & KEY_BACKWARDS) != 0) {
+            y = -1;
+        } else if ((held & KEY_LEFT) != 0) {
+            //just the right track forwards
+            x = -0.5f;
+            y = 0.5f;
+        } else if ((held & KEY_RIGHT) != 0) {
+            x = 0.5f;
+            y = 0.5f;
+        } else if ((held & KEY_CLOCKWISE) != 0) {
+            x = 1;
+        } else if ((held & KEY_ANTICLOCKWISE) != 0) {
+            x = -1;
+        } else {
+            keypressed = false;
         }
 
         //if using a joystick and not the keyboard
-        if (joystick != null && !keypressed) {
-
-            m1Brake = false;
-            m0Brake = false;
-
-            joystick.poll();
-            float x = xAxis.getPollData() * (invertX ? -1 : 1);
-            float y = yAxis.getPollData() * (invertY ? -1 : 1);
-//            float z = zAxis.getPollData() * (invertZ ? -1 : 1);
-
-            if (throttle != null) {
-                float t = throttle.getPollData();
-
-                //um, not sure why divided by 2
-                this.maxSpeed = (1 - t) * (float) absoluteMaxSpeed / 2;
-            }
-            //setting my own deadzone because I don't think MS's win7 drivers
-            //allow this to be done for the sidewinder anymore
-            if (Math.abs(x) < deadZone) {
-                x = 0;
-            }
-            if (Math.abs(y) < deadZone) {
-                y = 0;
-            }
-
-//            if (Math.abs(z) < deadZone) {
-//                z = 0;
-//            }
-            Vector joy = new Vector(x, y);
-
-            /*
-             this is the fiddly bit - each motor maps to an imaginary axis at 45deg to x,y.
-             this way forwards and backwards both motors get the same signal,
-             but left or right each motor gets the inverse so we spin on the spot
-             */
-            Vector m0Axis = (new Vector(1, 1)).getUnit();
-            Vector m1Axis = (new Vector(-1, 1)).getUnit();
-
-            Vector motorSpeeds = new Vector(m0Axis.dot(joy) * maxSpeed, m1Axis.dot(joy) * maxSpeed);
-
-            //scale the whole lot up so forwards and backwards are at full speed
-            motorSpeeds = motorSpeeds.multiply(Math.sqrt(2));
-
-//            double motorSpeedsSize = motorSpeeds.getMagnitude();
-//            if (motorSpeedsSize > 1) {
-//                //the corners can mean we end up with a magnitude greater than one
-//                //this way, going into the corner is the same as moving in that
-//                //direction but being the same distance from the centre as the top/bottom/left/right
-////                motorSpeeds = motorSpeeds.multiply(1 / motorSpeedsSize);
-//            }
-
-            m0Speed = motorSpeeds.x;
-            m1Speed = motorSpeeds.y;
-
-            //cap speeds to (-1,1] to keep pi-blaster happy
-            if (m0Speed > 1) {
-                m0Speed = 1;
+        if (b != null && !keypressed) {
+
+            if (b.input == null) {
+                if (!b.joystick.poll() && !b.lost) {
+                    System.err.println("Lost joystick " + b.joystick.getName());
+                    b.lost = true;
+                    if (b.lostListener != null) {
+                        b.lostListener.run();
+                    }
+                }
+            } else {
+                long eventMicros = b.input.getLastEventMicros();
+                if (eventMicros != lastEventMicros) {
+                    //the stick moved then, not now
+                    lastEventMicros = eventMicros;
+                    captureMicros = eventMicros;
+                }
             }
-            if (m0Speed < -1) {
-                m0Speed = -1;
+            //inverted, deadzoned and curved by the calibration
+            x = calibration.stickX(b.read(b.mapping.xAxis));
+            y = calibration.stickY(b.read(b.mapping.yAxis));
+            if (b.mapping.hasZAxis()) {
+                z = calibration.stickZ(b.read(b.mapping.zAxis));
             }
 
-            if (m1Speed > 1) {
-                m1Speed = 1;
-            }
-            if (m1Speed < -1) {
-                m1Speed = -1;
+            if (b.mapping.hasThrottle()) {
+                maxSpeed = calibration.maxSpeed(b.read(b.mapping.throttle));
             }
+            scale = maxSpeed;
         }
-        if (handbrake != null && handbrake.getPollData() != 0f) {
+        if (b != null && b.mapping.hasHandbrake() && handbrakePressed(b)) {
             //handbreak pressed
-            m0Speed = maxBrake;
-            m1Speed = maxBrake;
-            m0Brake = true;
-            m1Brake = true;
+            brake = true;
         }
 
-        if (!m0Brake) {
-            if (m0Speed > 0) {
-                m0Speed *= m0ForwardsAdjust;
+        /*
+         this is the fiddly bit - each motor gets its own mix of the stick (see
+         MotorLayout). For the tracks, each maps to an imaginary axis at 45deg to
+         x,y, so forwards and backwards both get the same signal but left or
+         right each gets the inverse so we spin on the spot.
+         */
+        for (int i = 0; i < numMotors; i++) {
+            brakes[i] = brake;
+            if (brake) {
+                speeds[i] = maxBrake;
             } else {
-                m0Speed *= m0BackwardsAdjust;
+                //cap speeds to (-1,1] to keep pi-blaster happy, and trim each motor
+                speeds[i] = calibration.motor(i, (mixX[i] * x + mixY[i] * y + mixZ[i] * z) * scale);
             }
         }
 
-        if (!m1Brake) {
-            if (m1Speed > 0) {
-                m1Speed *= m1ForwardsAdjust;
-            } else {
-                m1Speed *= m1BackwardsAdjust;
+        //set latest state
+        publish(captureMicros, maxSpeed);
+    }
+
+    /**
+     * @param b
+     * @return true if the handbrake is held, or has been pressed at all since
+     * the last update
+     */
+    private boolean handbrakePressed(Binding b) {
+        int handbrake = b.mapping.handbrake;
+        if (b.input == null) {
+            return b.read(handbrake) != 0f;
+        }
+        int presses = b.input.getPresses(handbrake);
+        boolean tapped = presses != handbrakePresses;
+        handbrakePresses = presses;
+        return tapped || b.input.getValue(handbrake) != 0f;
+    }
+
+    /**
+     * Publish the state from one update, so readers see all of it or none of
+     * it
+     */
+    private void publish(long captureMicros, float maxSpeed) {
+        int v = this.version;
+        this.version = v + 1;
+        for (int i = 0; i < numMotors; i++) {
+            published.set(i, MotorMailbox.pack(brakes[i], speeds[i]));
+        }
+        published.set(maxSpeedSlot, Float.floatToRawIntBits(maxSpeed));
+        published.set(captureSlot, captureMicros);
+        this.version = v + 2;
+    }
+
+    /**
+     * Copy the state from the latest update(), all from the same update.
+     * Never blocks, but tries again if update() publishes part way through.
+     * Can be called from any thread, each with its own snapshot.
+     *
+     * @param snapshot where to copy it
+     */
+    public void read(MotorSnapshot snapshot) {
+        while (true) {
+            int before = this.version;
+            if ((before & 1) == 0) {
+                for (int i = 0; i < numMotors; i++) {
+                    long motor = published.get(i);
+                    snapshot.set(i, MotorMailbox.isBrake(motor), MotorMailbox.getSpeed(motor));
+                }
+                snapshot.setMaxSpeed(Float.intBitsToFloat((int) published.get(maxSpeedSlot)));
+                snapshot.setCaptureMicros(published.get(captureSlot));
+                if (this.version == before) {
+                    snapshot.setVersion(before);
+                    return;
+                }
             }
+            //update() is publishing, it'll only be a moment
+            Thread.yield();
         }
+    }
 
-        //set latest commands
-        this.m0Command = new MotorCommand(0, m0Brake, (float) m0Speed);
-        this.m1Command = new MotorCommand(1, m1Brake, (float) m1Speed);
+    /**
+     * @return goes up every time update() publishes, so a reader can tell
+     * if it's worth reading again
+     */
+    public int getVersion() {
+        return this.version & ~1;
     }
 
+    /**
+     * Note a key going down. Can be called from any thread.
+     *
+     * @param evt
+     */
     public void keyDown(KeyEvent evt) {
-        switch (evt.getKeyCode()) {
-            case KeyEvent.VK_W:
-                forwards = true;
-                break;
-            case KeyEvent.VK_S:
-                backwards = true;
-                break;
-            case KeyEvent.VK_A:
-                left = true;
-                break;
-            case KeyEvent.VK_D:
-                right = true;
-                break;
-            case KeyEvent.VK_Q:
-                anticlockwise = true;
-                break;
-            case KeyEvent.VK_E:
-                clockwise = true;
-                break;
-            case KeyEvent.VK_SPACE:
-                stop = true;
-                break;
-//            case KeyEvent.VK_ENTER:
-//                client.fire();
-//                break;
-//            case KeyEvent.VK_H:
-//                client.playSound(client.HELLO_SOUND);
-//                break;
-        }
+        int key = keyBit(evt);
+        int held;
+        do {
+            held = keys.get();
+        } while (key != 0 && !keys.compareAndSet(held, held | key));
     }
 
+    /**
+     * Note a key coming up. Can be called from any thread.
+     *
+     * @param evt
+     */
     public void keyUp(KeyEvent evt) {
+        int key = keyBit(evt);
+        int held;
+        do {
+            held = keys.get();
+        } while (key != 0 && !keys.compareAndSet(held, held & ~key));
+    }
+
+    /**
+     * @param evt
+     * @return the bit for the key, or 0 if it isn't one we use
+     */
+    private static int keyBit(KeyEvent evt) {
         switch (evt.getKeyCode()) {
             case KeyEvent.VK_W:
-                forwards = false;
-                break;
+                return KEY_FORWARDS;
             case KeyEvent.VK_S:
-                backwards = false;
-                break;
+                return KEY_BACKWARDS;
             case KeyEvent.VK_A:
-                left = false;
-                break;
+                return KEY_LEFT;
             case KeyEvent.VK_D:
-                right = false;
-                break;
+                return KEY_RIGHT;
             case KeyEvent.VK_Q:
-                anticlockwise = false;
-                break;
+                return KEY_ANTICLOCKWISE;
             case KeyEvent.VK_E:
-                clockwise = false;
-                break;
+                return KEY_CLOCKWISE;
             case KeyEvent.VK_SPACE:
-                stop = false;
-                break;
-        }
-    }
-
-    /**
-     * Get the latest valid motor command
-     *
-     * @param motor
-     * @return
-     */
-    public MotorCommand getMotorCommand(int motor) {
-        switch (motor) {
-            case 0:
-                return this.m0Command;
-            case 1:
-                return this.m1Command;
+                return KEY_STOP;
             default:
-                return null;
+                return 0;
         }
     }
 
     /**
-     * Get the maximum speed as limited by the current throttle
-     *
-     * @return
+     * @return how many motors there are, from the MotorLayout
      */
-    public float getMaxSpeed() {
-        return this.maxSpeed;
+    public int getNumMotors() {
+        return numMotors;
     }
 
     /**
@@ -340,12 +435,17 @@ public class MotorState {
      * @return
      */
     public boolean hasThrottle() {
-        return this.throttle != null;
+        Binding b = this.binding;
+        return b != null && b.mapping.hasThrottle();
     }
 
-    
-    
+    /**
+     * Set the maximum speed when the joystick has no throttle, eg from the
+     * UI. Can be called from any thread, takes effect on the next update().
+     *
+     * @param maxSpeed
+     */
     public void setMaxSpeed(float maxSpeed) {
-        this.maxSpeed = maxSpeed;
+        this.requestedMaxSpeed = maxSpeed;
     }
 }
@@ -0,0 +1,22 @@
+package tankbot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Somewhere for pin states to go, in pi-blaster's "pin=value\n" format. On
+ * the Pi that's pi-blaster itself, but it can just as well be a file, a FIFO
+ * or nothing at all, so the server can run (and be stressed) anywhere.
+ *
+ * @author Luke
+ */
+public interface PinSink {
+
+    /**
+     * Write every line in the buffer, in one go if possible
+     *
+     * @param lines one or more whole "pin=value\n" lines
+     * @throws IOException
+     */
+    void write(ByteBuffer lines) throws IOException;
+}
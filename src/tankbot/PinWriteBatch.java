@@ -0,0 +1,152 @@
+package tankbot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects all the pin changes for a frame and sends them to pi-blaster (or
+ * whichever PinSink) in a single write, rather than formatting and flushing
+ * every pin separately.
+ *
+ * Pins which are being set to the value they already have are skipped
+ * entirely. Values are kept in hundredths, which is all the precision we
+ * ever gave pi-blaster anyway.
+ *
+ * Not thread safe, the caller is expected to hold a lock for the whole frame.
+ *
+ * @author Luke
+ */
+public class PinWriteBatch implements PwmBackend {
+
+    //the Pi only has 54 GPIO lines
+    public static final int MAX_PINS = 64;
+
+    private static final int UNKNOWN = -1;
+    private static final int HIGH = 100;
+
+    //longest possible line is "63=0.99\n"
+    private static final int MAX_LINE_LENGTH = 8;
+
+    private final PinSink sink;
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_PINS * MAX_LINE_LENGTH);
+
+    //last value actually written to each pin, in hundredths
+    private final int[] written = new int[MAX_PINS];
+    //value wanted for each pin this frame, in hundredths
+    private final int[] pending = new int[MAX_PINS];
+    //pins changed this frame, in the order they were first set
+    private final int[] changedPins = new int[MAX_PINS];
+    private int numChanged = 0;
+
+    public PinWriteBatch(PinSink sink) {
+        this.sink = sink;
+        Arrays.fill(written, UNKNOWN);
+        Arrays.fill(pending, UNKNOWN);
+    }
+
+    /**
+     * Set a pin between 0 and 1
+     *
+     * @param pin
+     * @param value
+     */
+    @Override
+    public void set(int pin, float value) {
+        setHundredths(pin, Math.round(Math.max(0, Math.min(1, value)) * HIGH));
+    }
+
+    /**
+     * Set a pin to zero or one
+     *
+     * @param pin
+     * @param high
+     */
+    @Override
+    public void set(int pin, boolean high) {
+        setHundredths(pin, high ? HIGH : 0);
+    }
+
+    private void setHundredths(int pin, int hundredths) {
+        if (pin < 0 || pin >= MAX_PINS) {
+            throw new IllegalArgumentException("No such GPIO pin " + pin);
+        }
+        if (pending[pin] == UNKNOWN) {
+            changedPins[numChanged++] = pin;
+        }
+        pending[pin] = hundredths;
+    }
+
+    /**
+     * Write every pin which has changed since the last flush in one go
+     *
+     * @return number of pins written
+     * @throws IOException
+     */
+    @Override
+    public int flush() throws IOException {
+        buffer.clear();
+        int numWritten = 0;
+        try {
+            for (int i = 0; i < numChanged; i++) {
+                int pin = changedPins[i];
+                if (pending[pin] != written[pin]) {
+                    putLine(pin, pending[pin]);
+                    numWritten++;
+                }
+            }
+
+            if (numWritten > 0) {
+                buffer.flip();
+                sink.write(buffer);
+                //only remember the values once they've actually gone, so if
+                //the write fails they get written again next time
+                for (int i = 0; i < numChanged; i++) {
+                    int pin = changedPins[i];
+                    written[pin] = pending[pin];
+                }
+            }
+        } finally {
+            for (int i = 0; i < numChanged; i++) {
+                pending[changedPins[i]] = UNKNOWN;
+            }
+            numChanged = 0;
+        }
+        return numWritten;
+    }
+
+    public PinSink getSink() {
+        return this.sink;
+    }
+
+    /**
+     * Forget what has been written, so the next flush writes every pin set
+     * (eg if pi-blaster has been restarted)
+     */
+    public void invalidate() {
+        Arrays.fill(written, UNKNOWN);
+    }
+
+    /**
+     * Format "pin=value\n" straight into the buffer, the same as pi-blaster
+     * would get from "%d=%.2f" but without creating any strings
+     */
+    private void putLine(int pin, int hundredths) {
+        if (pin >= 10) {
+            buffer.put((byte) ('0' + pin / 10));
+        }
+        buffer.put((byte) ('0' + pin % 10));
+        buffer.put((byte) '=');
+        if (hundredths >= HIGH) {
+            buffer.put((byte) '1');
+        } else if (hundredths == 0) {
+            buffer.put((byte) '0');
+        } else {
+            buffer.put((byte) '0');
+            buffer.put((byte) '.');
+            buffer.put((byte) ('0' + hundredths / 10));
+            buffer.put((byte) ('0' + hundredths % 10));
+        }
+        buffer.put((byte) '\n');
+    }
+}
@@ -0,0 +1,39 @@
+package tankbot;
+
+import java.io.IOException;
+
+/**
+ * Whatever actually drives the GPIO pins. Pins are set one at a time, then
+ * everything set since the last flush is applied together.
+ *
+ * Implementations don't need to be thread safe, they're only ever used by one
+ * thread at a time.
+ *
+ * @author Luke
+ */
+public interface PwmBackend {
+
+    /**
+     * Set a pin's duty cycle between 0 and 1. Nothing happens until flush().
+     *
+     * @param pin GPIO (BCM) pin number
+     * @param value
+     */
+    void set(int pin, float value);
+
+    /**
+     * Set a pin to zero or one. Nothing happens until flush().
+     *
+     * @param pin GPIO (BCM) pin number
+     * @param high
+     */
+    void set(int pin, boolean high);
+
+    /**
+     * Apply every pin which has changed since the last flush
+     *
+     * @return number of pins changed
+     * @throws IOException
+     */
+    int flush() throws IOException;
+}
@@ -4,9 +4,24 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,6 +29,62 @@ import java.util.logging.Logger;
  * Listens for connections over a TCP socket, and then uses pi-blaster to set
  * motors to the requested states
  *
+ * The pins can go somewhere other than pi-blaster with pinSink, either a file
+ * or FIFO, or "memory" to just count them, so the server can run without a
+ * Pi. Or pi-blaster can be skipped altogether with pwmBackend=gpiomem, which
+ * writes straight to the GPIO registers, or pwmBackend=simulated, which does
+ * the same to a temp file.
+ *
+ * All the networking happens on one thread, using a selector. Any number of
+ * clients (up to maxSessions) can connect, but only one at a time is the
+ * driver and allowed to set the motors. The first client to connect becomes
+ * the driver, the rest are observers until they send a takeover. A client
+ * connecting from the driver's address after the driver has gone quiet takes
+ * over automatically, so a driver whose old connection hasn't died yet isn't
+ * locked out.
+ *
+ * If transport=udp, drive frames can also arrive as datagrams from the
+ * driver. Only the newest frame matters, so any which arrive out of order are
+ * dropped rather than applied late.
+ *
+ * With legacySerialization, only one client at a time is serviced, on a
+ * blocking socket, as it always used to be.
+ *
+ * Whichever thread is reading from the network never sets the pins itself.
+ * It posts the newest state of each motor to a MotorMailbox, a whole frame at
+ * a time, and the actuator thread applies whatever is newest (never half of
+ * one frame and half of another), so a stall writing to pi-blaster can
+ * never back up the sockets or make the tank replay old commands. The
+ * actuator thread also runs the watchdog, so it's the only thread which ever
+ * touches the pins.
+ *
+ * The motors don't jump straight to each new state. The actuator thread
+ * ramps them towards it at profileRate, limited to maxAcceleration and
+ * maxDeceleration (full speeds per second, 0 for no limit), so driving stays
+ * smooth even if the client sends slowly or a frame goes missing. Brakes are
+ * applied straight away.
+ *
+ * The driver can also upload a Maneuver, which the actuator thread runs by
+ * itself against its own clock, so its timing doesn't depend on the link.
+ * It stops early if the driver sends a drive frame or motor command which
+ * changes anything (repeats of what was already being sent don't count), if
+ * the driver changes, or if the watchdog fires.
+ *
+ * Every client is sent Telemetry telemetryRate times a second (0 for never),
+ * saying what the motors have actually been set to, how long the last drive
+ * frame took to reach them, whether the watchdog has fired and the Pi's load.
+ * Telemetry only goes when nothing else is waiting to be sent to that client,
+ * so a client which isn't keeping up just misses some, and it never gets in
+ * the way of anything more important.
+ *
+ * Every client is also pinged pingRate times a second (0 for never), and
+ * answers pings from clients, so both ends know the round trip time and how
+ * far apart their clocks are (see LinkTiming). Latencies measured from when
+ * the driver read its joystick are corrected for the difference in clocks.
+ *
+ * If videoSource is set, the camera's stream is relayed to viewers too, see
+ * VideoRelay.
+ *
  * @author Luke
  */
 public class Server {
@@ -21,60 +92,940 @@ public class Server {
     private ServerSocket listener;
 //    private Socket socket;
     private final int port;
+    //for legacySerialization, which only services one client at a time
     private static final int MAX_CONNECTIONS = 1;
 
+    private Selector selector;
+    private final List<Session> sessions = new ArrayList<>();
+    private final int maxSessions;
+    //the session allowed to set the motors, if any
+    private Session driver;
+    //drive frames sent by sessions which aren't the driver
+    private long observerFrames = 0;
+    //totals for the life of the server, for seeing how it copes under load
+    private volatile long framesReceived = 0;
+    private volatile long framesApplied = 0;
+    private volatile long framesDropped = 0;
+
     //if true, debug mode spits out commands to pi blaster
     private static final boolean DEBUG_PI_BLASTER = false;
 
-    //this maps which GPIO pins on the Pi control which inputs on the H-bridges for each motor
-    public static final MotorPinMap[] motorPinMaps = new MotorPinMap[]{new MotorPinMap(4, 17, 18), new MotorPinMap(21, 22, 23)};
+    //which GPIO pins drive each motor, from the config
+    private final MotorLayout layout;
+    private final int numMotors;
 
-    public static final int NUM_MOTORS = motorPinMaps.length;
-
-    private PrintWriter piBlasterWriter;
+    //where pi-blaster is, unless the config says otherwise
+    private static final String PI_BLASTER = "/dev/pi-blaster";
+    //pinSink which doesn't set any pins
+    public static final String MEMORY_PIN_SINK = "memory";
+    //pwmBackend options
+    public static final String PI_BLASTER_BACKEND = "pi-blaster";
+    public static final String GPIOMEM_BACKEND = "gpiomem";
+    public static final String SIMULATED_BACKEND = "simulated";
+    private static final double DEFAULT_PWM_FREQUENCY = 100;
+    //sets the pins
+    private final PwmBackend pwmBackend;
+    //sets the pins for each motor, only ever used on the actuator thread
+    private final Actuator actuator;
+    //newest state of each motor, waiting for the actuator thread
+    private final MotorMailbox mailbox;
+    //what the actuator thread last took from the mailbox
+    private final long[] taken;
+    //ramps the motors towards the newest state, only ever used on the actuator thread
+    private final MotionProfiler profiler;
+    private final long profilePeriodNanos;
+    private static final double DEFAULT_PROFILE_RATE = 200;
+    //runs maneuvers, only ever used on the actuator thread
+    private final ManeuverRunner maneuverRunner;
+    //newest maneuver uploaded, waiting for the actuator thread to start it
+    private final AtomicReference<Maneuver> pendingManeuver = new AtomicReference<>();
+    //the maneuver the actuator thread is running, if any
+    private volatile Maneuver runningManeuver;
+    //how long before a maneuver step is due to stop sleeping and spin, as waking from a sleep is never exact
+    private static final long MANEUVER_SPIN_NANOS = 200000L;
+    //what the driver last sent, so repeats of it can be told apart from new commands while a maneuver runs
+    private final float[] lastManualSpeeds;
+    private final boolean[] lastManualBrakes;
     private boolean debug;
 
-    //for storing last motor commands for debug output
-    private MotorCommand[] debugMotors = new MotorCommand[]{new MotorCommand(0, false, 0), new MotorCommand(1, false, 0)};
+    //if true, expect java serialized MotorCommands rather than the binary wire protocol
+    private final boolean legacySerialization;
+    private final WireProtocol wireProtocol = new WireProtocol();
+    //for frames sent back to clients
+    private final WireProtocol replyProtocol = new WireProtocol();
+
+    //optional datagram channel for drive frames
+    private DatagramChannel datagramChannel;
+    private final ByteBuffer datagram = ByteBuffer.allocate(WireProtocol.MAX_FRAME_SIZE);
+    //address of the driver, only it may send datagrams
+    private volatile InetAddress sessionAddress;
+    //sequence number of the last drive frame applied this session
+    private int lastSequence;
+    private boolean haveSequence = false;
+    private long staleFrames = 0;
+    //when we last heard anything valid from the client, for telling if the link is alive
+    private volatile long lastHeardNanos;
+    private long heartbeats = 0;
+    //how long without hearing anything before the link counts as dead
+    private final long linkTimeoutNanos;
+
+    //if nothing is heard for this long, the watchdog stops the motors
+    private final long watchdogNanos;
+    //if more than zero, the watchdog ramps the motors down over this long rather than cutting them
+    private final long watchdogRampNanos;
+    private static final long WATCHDOG_PERIOD_MS = 10;
+    private static final long WATCHDOG_PERIOD_NANOS = WATCHDOG_PERIOD_MS * 1000000L;
+    //only set on the actuator thread
+    private volatile boolean watchdogTripped = false;
+    private volatile long watchdogFires = 0;
+
+    //how long each stage of getting a drive frame from the stick to the pins takes
+    private final LatencyHistogram transitLatency = new LatencyHistogram("capture to receive");
+    private final LatencyHistogram decodeLatency = new LatencyHistogram("receive to decode");
+    private final LatencyHistogram actuationLatency = new LatencyHistogram("decode to pins");
+    private final LatencyHistogram totalLatency = new LatencyHistogram("capture to pins");
+    //when the data being decoded arrived
+    private long receivedNanos, receivedMicros;
+    //timings for the newest drive frame in the mailbox, near enough for the actuator thread to time it to the pins
+    private volatile long postedReceivedNanos, postedDecodedNanos, postedTransitMicros;
+    //only used on the actuator thread, so a frame isn't timed twice
+    private long timedDecodedNanos;
+    //capture to pins for the newest drive frame timed
+    private volatile int lastLatencyMicros = Telemetry.NO_LATENCY;
+
+    //0 to never send telemetry
+    private final long telemetryPeriodNanos;
+    private static final double DEFAULT_TELEMETRY_RATE = 10;
+    private long nextTelemetryNanos;
+    //what each motor has actually been set to, packed by MotorMailbox.pack(), set on the actuator thread
+    private final AtomicLongArray appliedState;
+    //only used on the selector thread
+    private final Telemetry telemetry;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private long telemetrySkipped = 0;
+
+    //0 to never ping
+    private final long pingPeriodNanos;
+    private static final double DEFAULT_PING_RATE = 2;
+    private long nextPingNanos;
+    private int pingSequence = 0;
+    //timing of the link to the driver, for anyone who wants it
+    private volatile LinkTiming driverTiming;
+
     private static final int DEBUG_BARS = 20;
 
-    public Server(int _port, boolean debug) {
+    /**
+     * Set up a server which sets pins with whichever pwmBackend the config
+     * says (pi-blaster unless told otherwise). Call serve() to start
+     * listening.
+     *
+     * @param _port
+     * @param properties
+     * @param debug
+     */
+    public Server(int _port, Properties properties, boolean debug) {
+        this(_port, properties, debug, openPwmBackend(properties));
+    }
+
+    /**
+     * Set up a server which writes pins to the given sink, in pi-blaster's
+     * format. Call serve() to start listening.
+     *
+     * @param _port
+     * @param properties
+     * @param debug
+     * @param pinSink
+     */
+    public Server(int _port, Properties properties, boolean debug, PinSink pinSink) {
+        this(_port, properties, debug, new PinWriteBatch(pinSink));
+    }
+
+    /**
+     * Set up a server which sets pins with the given backend. Call serve() to
+     * start listening.
+     *
+     * @param _port
+     * @param properties
+     * @param debug
+     * @param pwmBackend
+     */
+    public Server(int _port, Properties properties, boolean debug, PwmBackend pwmBackend) {
+        this.pwmBackend = pwmBackend;
+        this.layout = new MotorLayout(properties);
+        this.numMotors = layout.getNumMotors();
+        this.mailbox = new MotorMailbox(numMotors);
+        this.taken = new long[numMotors];
+        this.lastManualSpeeds = new float[numMotors];
+        this.lastManualBrakes = new boolean[numMotors];
+        this.appliedState = new AtomicLongArray(numMotors);
+        this.telemetry = new Telemetry(numMotors);
+        this.actuator = new Actuator(layout, pwmBackend, DEBUG_PI_BLASTER && debug);
+        this.profiler = new MotionProfiler(this.actuator,
+                Float.parseFloat(properties.getProperty("maxAcceleration", "4")),
+                Float.parseFloat(properties.getProperty("maxDeceleration", "8")));
+        this.maneuverRunner = new ManeuverRunner(this.profiler, this.layout);
+        this.profilePeriodNanos = Math.round(1e9 / Double.parseDouble(properties.getProperty("profileRate", String.valueOf(DEFAULT_PROFILE_RATE))));
+
+        this.debug = debug;
+        this.port = _port;
+        this.legacySerialization = Boolean.parseBoolean(properties.getProperty("legacySerialization", "false"));
+        this.linkTimeoutNanos = Long.parseLong(properties.getProperty("linkTimeoutMs", "1500")) * 1000000L;
+        this.watchdogNanos = WireProtocol.getWatchdogMs(properties) * 1000000L;
+        this.watchdogRampNanos = Long.parseLong(properties.getProperty("watchdogRampMs", "0")) * 1000000L;
+        double telemetryRate = Double.parseDouble(properties.getProperty("telemetryRate", String.valueOf(DEFAULT_TELEMETRY_RATE)));
+        this.telemetryPeriodNanos = telemetryRate > 0 ? Math.round(1e9 / telemetryRate) : 0;
+        double pingRate = Double.parseDouble(properties.getProperty("pingRate", String.valueOf(DEFAULT_PING_RATE)));
+        this.pingPeriodNanos = pingRate > 0 ? Math.round(1e9 / pingRate) : 0;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                System.out.println();
+                System.out.println(getLatencyReport());
+            }
+        }, "LatencyReport"));
+
+        Thread actuatorThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                actuate();
+            }
+        }, "Actuator");
+        actuatorThread.setDaemon(true);
+        actuatorThread.start();
+
+        if (properties.getProperty("videoSource") != null) {
+            try {
+                new VideoRelay(properties).start();
+            } catch (IOException ex) {
+                System.err.println("Couldn't start the video relay: " + ex.getMessage());
+            }
+        }
 
+        this.maxSessions = Integer.parseInt(properties.getProperty("maxSessions", "8"));
+        if (properties.getProperty("transport", "tcp").equalsIgnoreCase("udp") && !this.legacySerialization) {
+            int udpPort = Integer.parseInt(properties.getProperty("udpPort", String.valueOf(port)));
+            try {
+                this.datagramChannel = DatagramChannel.open();
+                this.datagramChannel.bind(new InetSocketAddress(udpPort));
+                System.out.println("listening for datagrams on port " + udpPort);
+            } catch (IOException ex) {
+                Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+                this.datagramChannel = null;
+            }
+        }
+    }
+
+    /**
+     * Open the pwmBackend named in the config. Exits if it can't be opened,
+     * as there's no point running if we can't set the pins.
+     *
+     * @param properties
+     * @return
+     */
+    private static PwmBackend openPwmBackend(Properties properties) {
+        String name = properties.getProperty("pwmBackend", PI_BLASTER_BACKEND);
+        double pwmFrequency = Double.parseDouble(properties.getProperty("pwmFrequency", String.valueOf(DEFAULT_PWM_FREQUENCY)));
+        try {
+            if (name.equalsIgnoreCase(GPIOMEM_BACKEND)) {
+                String gpioMem = properties.getProperty("gpioMem", "/dev/gpiomem");
+                System.out.println("Setting pins through " + gpioMem + ", pulsing at " + pwmFrequency + "Hz");
+                return new GpioMemBackend(new File(gpioMem), pwmFrequency);
+            }
+            if (name.equalsIgnoreCase(SIMULATED_BACKEND)) {
+                System.out.println("Setting simulated pins, pulsing at " + pwmFrequency + "Hz");
+                return new SimulatedGpioBackend(pwmFrequency);
+            }
+        } catch (IOException ex) {
+            System.err.println("Couldn't open " + name + " pwmBackend: " + ex.getMessage());
+            System.exit(0);
+        }
+        return new PinWriteBatch(openPinSink(properties.getProperty("pinSink", PI_BLASTER)));
+    }
+
+    /**
+     * Open the pin sink named in the config: "memory" just counts pins,
+     * anything else is a file to write to, eg /dev/pi-blaster or a FIFO.
+     * Exits if a device (anything in /dev) isn't there, as there's no point
+     * running without pi-blaster.
+     *
+     * @param name
+     * @return
+     */
+    private static PinSink openPinSink(String name) {
+        if (name.equalsIgnoreCase(MEMORY_PIN_SINK)) {
+            System.out.println("Not setting any pins, just counting them");
+            return new CountingPinSink();
+        }
+        File file = new File(name);
+        if (!file.exists() && name.startsWith("/dev/")) {
+            System.err.println(name + " doesn't exist, is pi-blaster running? Set pinSink=" + MEMORY_PIN_SINK + " to run without it.");
+            System.exit(0);
+        }
         try {
-            //open up the pi blaster file for writing
-            this.piBlasterWriter = new PrintWriter(new File("/dev/pi-blaster"));
+            return new ChannelPinSink(file);
         } catch (FileNotFoundException ex) {
             Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
             System.exit(0);
+            return null;
         }
+    }
 
-        this.debug = debug;
-        this.port = _port;
+    /**
+     * Listen for clients and service them. Never returns unless something
+     * goes badly wrong.
+     */
+    public void serve() {
         try {
-            this.listener = new ServerSocket(port, MAX_CONNECTIONS);
-            while (true) {
-                //this blocks until a connection is received
-                System.out.println("listening on port " + port);
-                //this blocks until the socket dies
-                try (Socket socket = listener.accept()) {
-                    //this blocks until the socket dies
-                    System.out.println("Client connected (" + socket.toString() + ")");
-                    serviceClient(socket);
-                    stopAll();
-                }
+            if (this.legacySerialization) {
+                runLegacy();
+            } else {
+                run();
             }
         } catch (IOException ex) {
             System.out.println(ex.getMessage());
         }
+    }
+
+    /**
+     * The event loop, which services every client. Never returns unless
+     * something goes badly wrong.
+     *
+     * @throws IOException
+     */
+    private void run() throws IOException {
+        this.selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        if (this.datagramChannel != null) {
+            this.datagramChannel.configureBlocking(false);
+            this.datagramChannel.register(selector, SelectionKey.OP_READ);
+        }
+        System.out.println("listening on port " + port);
+
+        this.nextTelemetryNanos = System.nanoTime();
+        this.nextPingNanos = System.nanoTime();
+        while (true) {
+            select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(serverChannel);
+                } else if (key.channel() == this.datagramChannel) {
+                    receiveDatagrams();
+                } else {
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(session);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                    } catch (IOException ex) {
+                        close(session);
+                    }
+                }
+            }
+            if (this.telemetryPeriodNanos > 0 && System.nanoTime() - this.nextTelemetryNanos >= 0) {
+                sendTelemetry();
+                this.nextTelemetryNanos += this.telemetryPeriodNanos;
+                if (System.nanoTime() - this.nextTelemetryNanos >= 0) {
+                    //been idle, or fell behind
+                    this.nextTelemetryNanos = System.nanoTime() + this.telemetryPeriodNanos;
+                }
+            }
+            if (this.pingPeriodNanos > 0 && System.nanoTime() - this.nextPingNanos >= 0) {
+                sendPings();
+                this.nextPingNanos += this.pingPeriodNanos;
+                if (System.nanoTime() - this.nextPingNanos >= 0) {
+                    this.nextPingNanos = System.nanoTime() + this.pingPeriodNanos;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until something happens on the network, or the next telemetry or
+     * ping is due
+     *
+     * @throws IOException
+     */
+    private void select() throws IOException {
+        long wait = Long.MAX_VALUE;
+        if (!this.sessions.isEmpty()) {
+            long now = System.nanoTime();
+            if (this.telemetryPeriodNanos > 0) {
+                wait = Math.min(wait, this.nextTelemetryNanos - now);
+            }
+            if (this.pingPeriodNanos > 0) {
+                wait = Math.min(wait, this.nextPingNanos - now);
+            }
+        }
+        if (wait == Long.MAX_VALUE) {
+            selector.select();
+        } else if (wait > 0) {
+            selector.select(Math.max(1, wait / 1000000));
+        } else {
+            selector.selectNow();
+        }
+    }
+
+    /**
+     * Ping every client. A ping waiting behind other frames would time the
+     * queue rather than the link, so clients with anything still to send
+     * are skipped.
+     */
+    private void sendPings() {
+        int sequence = this.pingSequence++;
+        for (int i = sessions.size() - 1; i >= 0; i--) {
+            Session session = sessions.get(i);
+            try {
+                session.offer(replyProtocol.encodePing(sequence, Clock.nowMicros()));
+            } catch (IOException ex) {
+                close(session);
+            }
+        }
+    }
+
+    /**
+     * Tell every client what the server is doing, skipping any which haven't
+     * taken the last lot yet
+     */
+    private void sendTelemetry() {
+        if (this.sessions.isEmpty()) {
+            return;
+        }
+        int status = (this.watchdogTripped ? Telemetry.STATUS_WATCHDOG_TRIPPED : 0)
+                | (isManeuverActive() ? Telemetry.STATUS_MANEUVER : 0);
+        this.telemetry.setSequence(this.lastSequence);
+        this.telemetry.setServerMicros(Clock.nowMicros());
+        this.telemetry.setWatchdogFires((int) this.watchdogFires);
+        this.telemetry.setLatencyMicros(this.lastLatencyMicros);
+        double load = this.os.getSystemLoadAverage();
+        this.telemetry.setLoad(load < 0 ? Telemetry.NO_LOAD : (float) load);
+        for (int i = 0; i < numMotors; i++) {
+            long applied = this.appliedState.get(i);
+            this.telemetry.set(i, MotorMailbox.isBrake(applied), MotorMailbox.getSpeed(applied));
+        }
+        for (int i = sessions.size() - 1; i >= 0; i--) {
+            Session session = sessions.get(i);
+            this.telemetry.setStatus(status | (session == this.driver ? Telemetry.STATUS_DRIVER : 0));
+            try {
+                if (!session.offer(replyProtocol.encodeTelemetry(this.telemetry))) {
+                    this.telemetrySkipped++;
+                }
+            } catch (IOException ex) {
+                close(session);
+            }
+        }
+    }
+
+    /**
+     * The old way of doing things, for legacySerialization: service one
+     * client at a time, blocking until its socket dies
+     *
+     * @throws IOException
+     */
+    private void runLegacy() throws IOException {
+        this.listener = new ServerSocket(port, MAX_CONNECTIONS);
+        while (true) {
+            //this blocks until a connection is received
+            System.out.println("listening on port " + port);
+            //this blocks until the socket dies
+            try (Socket socket = listener.accept()) {
+                //this blocks until the socket dies
+                System.out.println("Client connected (" + socket.toString() + ")");
+                startSession(socket.getInetAddress());
+                serviceLegacyClient(socket);
+                startSession(null);
+                postStop();
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (sessions.size() >= maxSessions) {
+            System.out.println("Too many clients, refusing " + channel.socket().toString());
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        //commands are tiny and latency matters more than throughput
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Session session = new Session(channel, key);
+        key.attach(session);
+        sessions.add(session);
+        System.out.println("Client connected (" + session.toString() + ")");
+
+        if (driver == null || (driver.address.equals(session.address) && System.nanoTime() - this.lastHeardNanos > this.watchdogNanos)) {
+            //nobody else driving, or the driver has gone quiet and this is it reconnecting
+            setDriver(session);
+        } else {
+            sendRole(session, WireProtocol.ROLE_OBSERVER);
+        }
+    }
+
+    /**
+     * Read whatever has arrived and deal with every complete frame
+     *
+     * @param session
+     * @throws IOException if the session has gone
+     */
+    private void read(Session session) throws IOException {
+        ByteBuffer in = session.in;
+        if (session.channel.read(in) < 0) {
+            throw new IOException("End of stream");
+        }
+        this.receivedNanos = System.nanoTime();
+        this.receivedMicros = Clock.nowMicros();
+        in.flip();
+        int length;
+        while ((length = WireProtocol.frameLength(in)) > 0) {
+            if (length > WireProtocol.MAX_FRAME_SIZE) {
+                throw new IOException("Frame too large (" + length + " bytes)");
+            }
+            if (length > in.remaining()) {
+                //wait for the rest of it
+                break;
+            }
+            if (wireProtocol.decode(in)) {
+                this.framesReceived++;
+                input(session, wireProtocol);
+            } else {
+                System.err.println("Data received in unknown format");
+            }
+        }
+        in.compact();
+    }
+
+    private void close(Session session) {
+        System.out.println("Client lost (" + session.toString() + "), " + session.timing.getSummary());
+        sessions.remove(session);
+        session.key.cancel();
+        try {
+            session.channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if (session == driver) {
+            setDriver(null);
+        }
+    }
+
+    /**
+     * Hand control of the motors to a session, stopping them in between so
+     * nothing the old driver asked for carries on
+     *
+     * @param session new driver, or null for nobody
+     */
+    private void setDriver(Session session) {
+        Session oldDriver = this.driver;
+        if (oldDriver == session) {
+            return;
+        }
+        this.driver = session;
+        this.driverTiming = session == null ? null : session.timing;
+        if (oldDriver != null) {
+            if (oldDriver.channel.isOpen()) {
+                sendRole(oldDriver, WireProtocol.ROLE_OBSERVER);
+            }
+        }
+        startSession(session == null ? null : session.address);
+        postStop();
+        if (session != null) {
+            sendRole(session, WireProtocol.ROLE_DRIVER);
+            System.out.println(session.toString() + " is now driving");
+        }
+    }
+
+    private void sendRole(Session session, byte role) {
+        try {
+            session.send(replyProtocol.encodeRole(role));
+        } catch (IOException ex) {
+            //the read side will notice and close it
+            System.out.println("Failed to send to " + session.toString() + " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Forget the sequence numbers from any previous client
+     *
+     * @param address client allowed to send datagrams, or null for nobody
+     */
+    private synchronized void startSession(InetAddress address) {
+        if (this.staleFrames > 0) {
+            System.out.println("Dropped " + this.staleFrames + " stale drive frames");
+        }
+        if (address == null && this.heartbeats > 0) {
+            System.out.println("Received " + this.heartbeats + " heartbeats");
+        }
+        if (address == null && this.telemetrySkipped > 0) {
+            System.out.println("Skipped " + this.telemetrySkipped + " telemetry frames to clients which weren't keeping up");
+            this.telemetrySkipped = 0;
+        }
+        if (this.observerFrames > 0) {
+            System.out.println("Ignored " + this.observerFrames + " drive frames from observers");
+            this.observerFrames = 0;
+        }
+        if (address == null && this.watchdogFires > 0) {
+            System.out.println("Watchdog has fired " + this.watchdogFires + " times");
+        }
+        this.sessionAddress = address;
+        this.haveSequence = false;
+        this.staleFrames = 0;
+        this.heartbeats = 0;
+        this.lastHeardNanos = System.nanoTime();
+    }
 
+    /**
+     * The client only sends when something changes, with heartbeats in
+     * between, so the link is alive as long as we've heard anything recently
+     *
+     * @return true if a client is connected and has been heard from within
+     * linkTimeoutMs
+     */
+    public boolean isLinkAlive() {
+        return this.sessionAddress != null && System.nanoTime() - this.lastHeardNanos < this.linkTimeoutNanos;
     }
 
     /**
-     * Given a port, deal with instructions received
+     * The actuator thread: take whatever turns up in the mailbox as the new
+     * targets, step the motors towards them at profileRate until they get
+     * there, and run the watchdog every WATCHDOG_PERIOD_MS. Runs for the life
+     * of the server.
+     */
+    private void actuate() {
+        long nextWatchdog = System.nanoTime() + WATCHDOG_PERIOD_NANOS;
+        long nextProfile = System.nanoTime();
+        long lastProfile = nextProfile - this.profilePeriodNanos;
+        while (true) {
+            boolean moving = !isWatchdogRamping() && !this.profiler.isSettled();
+            long wake = moving && nextProfile - nextWatchdog < 0 ? nextProfile : nextWatchdog;
+            boolean maneuverStepNext = this.maneuverRunner.isRunning() && this.maneuverRunner.getNextDeadline() - wake < 0;
+            if (maneuverStepNext) {
+                wake = this.maneuverRunner.getNextDeadline();
+            }
+            long wait = wake - System.nanoTime() - (maneuverStepNext ? MANEUVER_SPIN_NANOS : 0);
+            if (wait > 0) {
+                mailbox.await(wait);
+            }
+            if (maneuverStepNext && wake - System.nanoTime() <= MANEUVER_SPIN_NANOS) {
+                //spin the last little bit so the step starts on time. Not if
+                //woken early by a frame, that wants handling straight away
+                while (System.nanoTime() - wake < 0) {
+                }
+            }
+
+            boolean newTargets = takeMailbox();
+            if (newTargets && this.maneuverRunner.isRunning()) {
+                System.out.println("Maneuver preempted");
+                stopManeuver();
+            }
+            Maneuver maneuver = this.pendingManeuver.getAndSet(null);
+            if (maneuver != null) {
+                System.out.println("Running a " + maneuver.getNumSteps() + " step maneuver (" + maneuver.getTotalMicros() / 1000 + "ms)");
+                this.maneuverRunner.start(maneuver, System.nanoTime());
+                this.runningManeuver = maneuver;
+                this.watchdogTripped = false;
+            }
+            boolean maneuverStepped = false;
+            if (this.maneuverRunner.isRunning()) {
+                maneuverStepped = this.maneuverRunner.advance(System.nanoTime());
+                newTargets |= maneuverStepped;
+                if (!this.maneuverRunner.isRunning()) {
+                    this.runningManeuver = null;
+                }
+            }
+            if ((newTargets && !moving) || maneuverStepped) {
+                //was sitting still, or a maneuver step is due, so start on it
+                //now rather than waiting for a tick
+                nextProfile = System.nanoTime();
+            }
+
+            long now = System.nanoTime();
+            if (now - nextProfile >= 0) {
+                //a step pulled forward only gets to move as far as the time
+                //since the last one allows
+                long elapsed = Math.min(now - lastProfile, this.profilePeriodNanos);
+                if (!isWatchdogRamping() && this.profiler.step(elapsed / 1e9f)) {
+                    finishFrame();
+                    recordActuation();
+                }
+                lastProfile = now;
+                nextProfile += this.profilePeriodNanos;
+                if (now - nextProfile >= 0) {
+                    //been idle, or fell behind
+                    nextProfile = now + this.profilePeriodNanos;
+                }
+            }
+            if (now - nextWatchdog >= 0) {
+                watchdog();
+                nextWatchdog += WATCHDOG_PERIOD_NANOS;
+            }
+        }
+    }
+
+    /**
+     * Stop running any maneuver, and forget any waiting to start
+     */
+    private void stopManeuver() {
+        this.maneuverRunner.cancel();
+        this.pendingManeuver.set(null);
+        this.runningManeuver = null;
+    }
+
+    /**
+     * Make whatever has been posted since last time the new targets
+     *
+     * @return true if anything was posted
+     */
+    private boolean takeMailbox() {
+        //all from the same frame, so the motors can't be set out of step
+        if (!mailbox.take(this.taken)) {
+            return false;
+        }
+        for (int i = 0; i < numMotors; i++) {
+            long value = this.taken[i];
+            if (value != MotorMailbox.NOTHING) {
+                this.profiler.setTarget(i, MotorMailbox.isBrake(value), MotorMailbox.getSpeed(value));
+            }
+        }
+        this.watchdogTripped = false;
+        return true;
+    }
+
+    /**
+     * Time how long the newest drive frame took to start reaching the pins,
+     * if it hasn't been timed already
+     */
+    private void recordActuation() {
+        long decodedNanos = this.postedDecodedNanos;
+        if (decodedNanos != this.timedDecodedNanos) {
+            this.timedDecodedNanos = decodedNanos;
+            long actuatedNanos = System.nanoTime();
+            actuationLatency.record((actuatedNanos - decodedNanos) / 1000);
+            long total = this.postedTransitMicros + (actuatedNanos - this.postedReceivedNanos) / 1000;
+            totalLatency.record(total);
+            this.lastLatencyMicros = (int) Math.max(0, Math.min(Integer.MAX_VALUE, total));
+        }
+    }
+
+    /**
+     * Stop the motors if a connected client goes quiet for longer than
+     * watchdogMs, rather than waiting for tcp to notice the connection has
+     * gone. Once it has fired, the motors stay stopped until the next drive
+     * frame (a heartbeat alone isn't enough to start moving again, the client
+     * sends one when telemetry says the watchdog has tripped). Called on the
+     * actuator thread.
+     *
+     * With watchdogRampMs set the watchdog ramps the motors down itself, and
+     * the profiler is left alone until the next drive frame so the two don't
+     * both write the motors.
+     */
+    private void watchdog() {
+        if (this.sessionAddress == null) {
+            //nobody connected, motors were stopped when they left
+            return;
+        }
+        long silence = System.nanoTime() - this.lastHeardNanos;
+        if (silence < this.watchdogNanos) {
+            return;
+        }
+        if (!this.watchdogTripped) {
+            this.watchdogTripped = true;
+            this.watchdogFires++;
+            //so the profiler (or a maneuver) doesn't drive them back up again
+            stopManeuver();
+            this.profiler.stopAll();
+            System.out.println("Watchdog: nothing heard for " + silence / 1000000 + "ms, stopping motors (fired " + this.watchdogFires + " times)");
+            if (this.watchdogRampNanos <= 0) {
+                stopAll();
+            }
+        }
+        if (this.watchdogRampNanos > 0) {
+            rampDown((float) WATCHDOG_PERIOD_NANOS / this.watchdogRampNanos);
+        }
+    }
+
+    /**
+     * @return true if the watchdog has tripped and is ramping the motors down,
+     * so the profiler mustn't step them
+     */
+    private boolean isWatchdogRamping() {
+        return this.watchdogTripped && this.watchdogRampNanos > 0;
+    }
+
+    /**
+     * Move every motor towards stopped (coasting) by up to step
+     *
+     * @param step
+     */
+    private void rampDown(float step) {
+        boolean changed = false;
+        for (int i = 0; i < numMotors; i++) {
+            float speed = this.actuator.getSpeed(i);
+            if (speed == 0 || this.actuator.getBrake(i)) {
+                //already stopped or braking, leave it that way
+                continue;
+            }
+            float newSpeed = Math.abs(speed) <= step ? 0 : speed - Math.signum(speed) * step;
+            setMotor(i, false, newSpeed);
+            changed = true;
+        }
+        if (changed) {
+            finishFrame();
+        }
+    }
+
+    /**
+     * Record how long a drive frame took to get here and be decoded, and
+     * leave what's needed to time the rest for the actuator thread
+     *
+     * @param captureMicros when the client read the joystick
+     * @param decodedNanos
+     */
+    private void recordLatency(long captureMicros, long decodedNanos) {
+        LinkTiming timing = this.driverTiming;
+        if (timing != null) {
+            //on our clock rather than the client's
+            captureMicros = timing.toLocalMicros(captureMicros);
+        }
+        long transit = this.receivedMicros - captureMicros;
+        transitLatency.record(transit);
+        decodeLatency.record((decodedNanos - this.receivedNanos) / 1000);
+        this.postedTransitMicros = transit;
+        this.postedReceivedNanos = this.receivedNanos;
+        this.postedDecodedNanos = decodedNanos;
+    }
+
+    /**
+     * How long drive frames are taking to get from the joystick to the pins.
+     * Anything which crosses from the client to the server is corrected for
+     * the difference in clocks, once the driver has answered a ping, so it's
+     * only as accurate as that estimate.
+     *
+     * @return a line for each stage
+     */
+    public String getLatencyReport() {
+        return transitLatency.getSummary() + "\n"
+                + decodeLatency.getSummary() + "\n"
+                + actuationLatency.getSummary() + "\n"
+                + totalLatency.getSummary();
+    }
+
+    /**
+     * @return every frame decoded since the server started, from anyone
+     */
+    public long getFramesReceived() {
+        return this.framesReceived;
+    }
+
+    /**
+     * @return drive frames and motor commands which have been handed to the
+     * actuator thread (some of which may then have been coalesced)
+     */
+    public long getFramesApplied() {
+        return this.framesApplied;
+    }
+
+    /**
+     * @return drive frames and motor commands which weren't applied, because
+     * they arrived out of order or weren't from the driver
+     */
+    public long getFramesDropped() {
+        return this.framesDropped;
+    }
+
+    /**
+     * @return how long drive frames have taken to get from the client's
+     * joystick to the pins
+     */
+    public LatencyHistogram getTotalLatency() {
+        return this.totalLatency;
+    }
+
+    /**
+     * @return motor commands which were replaced by newer ones before the
+     * actuator thread got to them
+     */
+    public long getCoalesced() {
+        return this.mailbox.getCoalesced();
+    }
+
+    public PwmBackend getPwmBackend() {
+        return this.pwmBackend;
+    }
+
+    /**
+     * @return round trip time and clock offset to the driver, or null if
+     * nobody is driving
+     */
+    public LinkTiming getDriverTiming() {
+        return this.driverTiming;
+    }
+
+    /**
+     * @return number of times the watchdog has stopped the motors
+     */
+    public long getWatchdogFires() {
+        return this.watchdogFires;
+    }
+
+    /**
+     * Apply any drive frames which have arrived as datagrams
+     */
+    private void receiveDatagrams() {
+        while (true) {
+            try {
+                datagram.clear();
+                InetSocketAddress from = (InetSocketAddress) datagramChannel.receive(datagram);
+                if (from == null) {
+                    //nothing left to read
+                    return;
+                }
+                this.receivedNanos = System.nanoTime();
+                this.receivedMicros = Clock.nowMicros();
+                datagram.flip();
+                if (driver == null || !from.getAddress().equals(this.sessionAddress)) {
+                    //not from the client that's driving
+                    continue;
+                }
+                //a datagram should hold exactly one frame
+                if (WireProtocol.frameLength(datagram) == datagram.remaining() && wireProtocol.decode(datagram)) {
+                    this.framesReceived++;
+                    input(driver, wireProtocol);
+                } else {
+                    System.err.println("Data received in unknown format");
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deal with instructions received as serialized java objects, for clients
+     * which have been set to legacySerialization
      *
      * @param socket
      */
-    private void serviceClient(Socket socket) {
+    private void serviceLegacyClient(Socket socket) {
         ObjectInputStream in;
         try {
             System.out.println(socket.getInetAddress().toString() + " connected");
@@ -104,90 +1055,216 @@ public class Server {
      *
      * @param message
      */
-    private void input(Object message) {
+    private synchronized void input(Object message) {
         if (message == null) {
             return;
         }
+        this.lastHeardNanos = System.nanoTime();
         if (message.getClass().equals(MotorCommand.class)) {
             MotorCommand motor = (MotorCommand) message;
             //process motor command!
-            setMotor(motor);
+            post(motor);
         }
     }
 
     /**
-     * Set a pin between 0 and 1
+     * Process a frame decoded from the wire protocol
      *
-     * @param pin
-     * @param value
+     * @param session where it came from
+     * @param frame
      */
-    private void setPin(int pin, float value) {
-        this.piBlasterWriter.println(String.format("%d=%.2f", pin, value));
-        this.piBlasterWriter.flush();
-        if (DEBUG_PI_BLASTER && debug) {
-            System.out.println(String.format("%d=%.2f", pin, value));
+    private void input(Session session, WireProtocol frame) {
+        switch (frame.getType()) {
+            case WireProtocol.TYPE_TAKEOVER:
+                setDriver(session);
+                return;
+            case WireProtocol.TYPE_ROLE:
+            case WireProtocol.TYPE_TELEMETRY:
+                //only ever sent by us
+                return;
+            case WireProtocol.TYPE_PING:
+                try {
+                    session.send(replyProtocol.encodePong(frame.getSequence(), frame.getOriginMicros(), this.receivedMicros, Clock.nowMicros()));
+                } catch (IOException ex) {
+                    //the read side will notice and close it
+                    System.out.println("Failed to send to " + session.toString() + " " + ex.getMessage());
+                }
+                return;
+            case WireProtocol.TYPE_PONG:
+                session.timing.record(frame.getOriginMicros(), frame.getReceivedMicros(), frame.getTransmitMicros(), this.receivedMicros);
+                return;
+        }
+        if (session == this.driver) {
+            input(frame);
+        } else if (frame.getType() == WireProtocol.TYPE_DRIVE_FRAME || frame.getType() == WireProtocol.TYPE_MOTOR_COMMAND) {
+            //observers can't drive
+            this.observerFrames++;
+            this.framesDropped++;
         }
     }
 
     /**
-     * Set a pin to zero or one
+     * Process a frame decoded from the wire protocol, from the driver
      *
-     * @param pin
-     * @param high
+     * @param frame
      */
-    private void setPin(int pin, boolean high) {
-        this.piBlasterWriter.println(String.valueOf(pin) + "=" + (high ? "1" : "0"));
-        this.piBlasterWriter.flush();
-        if (DEBUG_PI_BLASTER && this.debug) {
-            System.out.println(String.valueOf(pin) + "=" + (high ? "1" : "0"));
+    private synchronized void input(WireProtocol frame) {
+        this.lastHeardNanos = System.nanoTime();
+        switch (frame.getType()) {
+            case WireProtocol.TYPE_HEARTBEAT:
+                this.heartbeats++;
+                break;
+            case WireProtocol.TYPE_DRIVE_FRAME:
+                if (this.haveSequence && !WireProtocol.isNewer(frame.getSequence(), this.lastSequence)) {
+                    //arrived out of order, we've already applied something newer
+                    this.staleFrames++;
+                    this.framesDropped++;
+                    return;
+                }
+                this.lastSequence = frame.getSequence();
+                this.haveSequence = true;
+                boolean repeat = isRepeat(frame.getDriveFrame());
+                if (!repeat) {
+                    //repeats would swamp the times of the frames that matter
+                    recordLatency(frame.getDriveFrame().getCaptureMicros(), System.nanoTime());
+                } else if (isManeuverActive()) {
+                    break;
+                }
+                post(frame.getDriveFrame());
+                this.framesApplied++;
+                break;
+            case WireProtocol.TYPE_MOTOR_COMMAND:
+                if (isManeuverActive() && frame.getMotor() < numMotors
+                        && lastManualBrakes[frame.getMotor()] == frame.getBrake() && lastManualSpeeds[frame.getMotor()] == frame.getSpeed()) {
+                    break;
+                }
+                post(frame.getMotor(), frame.getBrake(), frame.getSpeed());
+                this.framesApplied++;
+                break;
+            case WireProtocol.TYPE_MANEUVER:
+                this.pendingManeuver.set(new Maneuver(frame.getManeuver()));
+                mailbox.signal();
+                break;
         }
     }
 
     /**
-     * Stop all motors
+     * Stop all motors, on the actuator thread
      */
     private void stopAll() {
-        setMotor(new MotorCommand(0, false, 0));
-        setMotor(new MotorCommand(1, false, 0));
+        this.actuator.stopAll();
+        finishFrame();
     }
 
-    private void setMotor(MotorCommand motorCommand) {
-        if (motorCommand.motor < NUM_MOTORS && motorCommand.speed >= -1 && motorCommand.speed <= 1) {
-            //valid motor and valid speed
+    /**
+     * Ask the actuator thread to stop all motors, replacing anything waiting
+     * for it
+     */
+    private void postStop() {
+        this.pendingManeuver.set(null);
+        mailbox.beginFrame();
+        for (int i = 0; i < numMotors; i++) {
+            lastManualBrakes[i] = false;
+            lastManualSpeeds[i] = 0;
+            mailbox.post(i, false, 0);
+        }
+        mailbox.endFrame();
+    }
 
-            if (motorCommand.brake) {
-                //set both inputs to ground - still use speed for enable, as we might not be using the full brake
-                setPin(motorPinMaps[motorCommand.motor].getIn1GPIO(), false);
-                setPin(motorPinMaps[motorCommand.motor].getIn2GPIO(), false);
+    private void post(MotorCommand motorCommand) {
+        post(motorCommand.motor, motorCommand.brake, motorCommand.speed);
+    }
 
-            } else {
+    /**
+     * Hand the state of one motor to the actuator thread
+     */
+    private void post(int motor, boolean brake, float speed) {
+        if (motor >= 0 && motor < numMotors) {
+            lastManualBrakes[motor] = brake;
+            lastManualSpeeds[motor] = speed;
+        }
+        //a maneuver uploaded but not started yet mustn't start after this
+        this.pendingManeuver.set(null);
+        mailbox.beginFrame();
+        mailbox.post(motor, brake, speed);
+        mailbox.endFrame();
+    }
 
-                if (motorCommand.speed < 0) {
-                    //going backwards
-                    //set in1 low and in2 high
-                    setPin(motorPinMaps[motorCommand.motor].getIn1GPIO(), false);
-                    setPin(motorPinMaps[motorCommand.motor].getIn2GPIO(), true);
+    /**
+     * Hand the state of every motor in the frame to the actuator thread
+     *
+     * @param frame
+     */
+    private void post(DriveFrame frame) {
+        int n = Math.min(frame.getNumMotors(), numMotors);
+        for (int i = 0; i < n; i++) {
+            lastManualBrakes[i] = frame.getBrake(i);
+            lastManualSpeeds[i] = frame.getSpeed(i);
+        }
+        this.pendingManeuver.set(null);
+        mailbox.beginFrame();
+        for (int i = 0; i < n; i++) {
+            mailbox.post(i, frame.getBrake(i), frame.getSpeed(i));
+        }
+        mailbox.endFrame();
+    }
 
-                } else {
-                    //forwards, in1 high and in2 low
-                    setPin(motorPinMaps[motorCommand.motor].getIn1GPIO(), true);
-                    setPin(motorPinMaps[motorCommand.motor].getIn2GPIO(), false);
-                }
+    /**
+     * @return true if a maneuver is running or about to
+     */
+    private boolean isManeuverActive() {
+        return this.pendingManeuver.get() != null || this.runningManeuver != null;
+    }
+
+    /**
+     * A client keeps repeating its last drive frame as a heartbeat, which
+     * mustn't stop a maneuver it has just started, or be timed again
+     *
+     * @param frame
+     * @return true if the frame has nothing new in it
+     */
+    private boolean isRepeat(DriveFrame frame) {
+        int n = Math.min(frame.getNumMotors(), numMotors);
+        for (int i = 0; i < n; i++) {
+            if (frame.getBrake(i) != lastManualBrakes[i] || frame.getSpeed(i) != lastManualSpeeds[i]) {
+                return false;
             }
+        }
+        return true;
+    }
+
+    private void setMotor(int motor, boolean brake, float speed) {
+        this.actuator.setMotor(motor, brake, speed);
+    }
 
-            setPin(motorPinMaps[motorCommand.motor].getEnableGPIO(), Math.abs(motorCommand.speed));
+    /**
+     * Write out all the pins set since the last frame
+     */
+    private void finishFrame() {
+        try {
+            this.actuator.flush();
+        } catch (IOException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
         }
+        for (int i = 0; i < numMotors; i++) {
+            this.appliedState.set(i, MotorMailbox.pack(this.actuator.getBrake(i), this.actuator.getSpeed(i)));
+        }
+        printDebugBars();
+    }
 
+    /**
+     * Show the last speed of every motor as a row of bars
+     */
+    private void printDebugBars() {
         if (this.debug && !DEBUG_PI_BLASTER) {
-            this.debugMotors[motorCommand.motor] = motorCommand;
-
             String barString = "\r";
-            for (MotorCommand m : this.debugMotors) {
+            for (int m = 0; m < numMotors; m++) {
+                float s = this.actuator.getSpeed(m);
 
                 barString += "[";
 
                 //convert speed into a number between 0 and DEBUG_BARS 
-                int bars = Math.round(m.speed * DEBUG_BARS / 2 + DEBUG_BARS / 2);
+                int bars = Math.round(s * DEBUG_BARS / 2 + DEBUG_BARS / 2);
 
                 for (int i = 0; i < DEBUG_BARS; i++) {
                     if (i <= bars) {
@@ -0,0 +1,95 @@
+package tankbot;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One client connected to the server. Holds the buffers for reading frames
+ * from and writing frames to a non-blocking channel, so the server can look
+ * after lots of clients from a single thread.
+ *
+ * Only one session at a time is the driver, which is allowed to set the
+ * motors. The rest are observers.
+ *
+ * @author Luke
+ */
+class Session {
+
+    //enough to hold several frames if they arrive together
+    private static final int IN_BUFFER_SIZE = WireProtocol.MAX_FRAME_SIZE * 4;
+    private static final int OUT_BUFFER_SIZE = WireProtocol.MAX_FRAME_SIZE * 4;
+
+    final SocketChannel channel;
+    final SelectionKey key;
+    final InetAddress address;
+    //kept in write mode between reads
+    final ByteBuffer in = ByteBuffer.allocate(IN_BUFFER_SIZE);
+    //kept in write mode, holds anything the socket wasn't ready for
+    private final ByteBuffer out = ByteBuffer.allocate(OUT_BUFFER_SIZE);
+    //round trip and clock offset to the client, from our pings
+    final LinkTiming timing = new LinkTiming();
+
+    Session(SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
+        this.address = channel.socket().getInetAddress();
+    }
+
+    /**
+     * Queue a frame to be sent and try to send it straight away
+     *
+     * @param frame
+     * @return false if there wasn't room to queue it
+     * @throws IOException
+     */
+    boolean send(ByteBuffer frame) throws IOException {
+        if (frame.remaining() > out.remaining()) {
+            return false;
+        }
+        out.put(frame);
+        flush();
+        return true;
+    }
+
+    /**
+     * Send a frame only if nothing else is waiting to go. For frames which
+     * are soon replaced by newer ones, like telemetry, so they never queue up
+     * or hold up anything that matters more.
+     *
+     * @param frame
+     * @return false if it wasn't sent
+     * @throws IOException
+     */
+    boolean offer(ByteBuffer frame) throws IOException {
+        if (out.position() > 0) {
+            return false;
+        }
+        return send(frame);
+    }
+
+    /**
+     * Write as much of the queued data as the socket will take, and only ask
+     * to hear when it's writable if there's anything left
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        out.flip();
+        channel.write(out);
+        boolean pending = out.hasRemaining();
+        out.compact();
+        if (pending) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return channel.socket().toString();
+    }
+}
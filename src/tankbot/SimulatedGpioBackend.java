@@ -0,0 +1,64 @@
+package tankbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * GpioMemBackend mapped onto a temp file rather than /dev/gpiomem, so the
+ * memory mapped code path can be run on any machine.
+ *
+ * Plays the part of the hardware as far as the level registers go: writes
+ * to the set and clear registers are reflected in GPLEV, so isHigh() tells
+ * you what the pin would be doing.
+ *
+ * @author Luke
+ */
+public class SimulatedGpioBackend extends GpioMemBackend {
+
+    /**
+     * @param pwmFrequency Hz to pulse pins at
+     * @throws IOException if the temp file couldn't be made
+     */
+    public SimulatedGpioBackend(double pwmFrequency) throws IOException {
+        super(createRegisterFile(), pwmFrequency);
+    }
+
+    private static File createRegisterFile() throws IOException {
+        File file = File.createTempFile("gpiomem", ".sim");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(BLOCK_SIZE);
+        }
+        return file;
+    }
+
+    @Override
+    protected synchronized void writeRegister(int offset, int value) {
+        super.writeRegister(offset, value);
+        if (offset == GPSET0 || offset == GPSET0 + 4) {
+            int level = GPLEV0 + (offset - GPSET0);
+            super.writeRegister(level, readRegister(level) | value);
+        } else if (offset == GPCLR0 || offset == GPCLR0 + 4) {
+            int level = GPLEV0 + (offset - GPCLR0);
+            super.writeRegister(level, readRegister(level) & ~value);
+        }
+    }
+
+    /**
+     * @param pin
+     * @return true if the pin would be high right now
+     */
+    public synchronized boolean isHigh(int pin) {
+        int level = readRegister(GPLEV0 + (pin / 32) * 4);
+        return (level & (1 << (pin % 32))) != 0;
+    }
+
+    /**
+     * @param pin
+     * @return the pin's function select bits, 1 for output
+     */
+    public int getFunction(int pin) {
+        return (readRegister(GPFSEL0 + (pin / 10) * 4) >> ((pin % 10) * 3)) & 7;
+    }
+}
@@ -25,6 +25,8 @@ public class TankBot {
                 + "-p --port: Port to connect to\n"
                 + "-i --ip: IP address to connect to\n"
                 + "-d --debug: Print debug information\n"
+                + "-l --load: Send lots of frames to a server and report how it copes\n"
+                + "   (with -s, starts a server in this process that doesn't set any pins)\n"
                 + "Note, command line arguments will override config file");
     }
     
@@ -39,6 +41,7 @@ public class TankBot {
         CmdLineParser.Option ipArg = parser.addStringOption('i',"ip");
         CmdLineParser.Option debugArg = parser.addBooleanOption('d',"debug");
         CmdLineParser.Option configFileArg = parser.addStringOption('c',"config");
+        CmdLineParser.Option loadArg = parser.addBooleanOption('l',"load");
         
         
         try {
@@ -70,20 +73,52 @@ public class TankBot {
         int port = (Integer) parser.getOptionValue(portArg, defaultPort);
         String ip = (String)parser.getOptionValue(ipArg, defaultIp);
         boolean debug = (Boolean) parser.getOptionValue(debugArg,false);
+        boolean load = (Boolean) parser.getOptionValue(loadArg,false);
         
-        if(actAsServer){
+        if(load){
+            runLoad(actAsServer, ip, port, properties);
+        }else if(actAsServer){
             
-            Server server = new Server(port, debug);
+            Server server = new Server(port, properties, debug);
+            server.serve();
             
         }else{
             Client client = new Client(properties, debug);
 //            MotorState motorState = new MotorState(client.getJoystick(), properties);
             ControlWindow window = new ControlWindow(client, client.getMotorState(), ip, port);
             window.setVisible(true);
+            client.start();
             
             client.connectTo(ip, port);
             
         }
     }
 
+    /**
+     * Run the load generator, against a server in this process if asked
+     */
+    private static void runLoad(boolean withServer, String ip, int port, Properties properties) {
+        Server server = null;
+        if (withServer) {
+            final Server localServer = new Server(port, properties, false, new CountingPinSink());
+            Thread serverThread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    localServer.serve();
+                }
+            }, "Server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            server = localServer;
+            ip = "localhost";
+        }
+        try {
+            new LoadGenerator(ip, port, properties, server).run();
+        } catch (IOException ex) {
+            System.err.println("Load generator failed: " + ex.getMessage());
+        }
+        System.exit(0);
+    }
+
 }
@@ -0,0 +1,173 @@
+package tankbot;
+
+/**
+ * What the server is actually doing, as opposed to what the client asked it
+ * to do: the state it has applied to each motor, how long the last drive
+ * frame took to reach the pins, whether the watchdog has stopped the motors,
+ * and how busy the Pi is.
+ *
+ * Mutable so a single instance can be reused for encoding and decoding. Copy
+ * it before handing it to another thread.
+ *
+ * @author Luke
+ */
+public class Telemetry {
+
+    //status flags
+    public static final int STATUS_DRIVER = 0x01;
+    public static final int STATUS_WATCHDOG_TRIPPED = 0x02;
+    public static final int STATUS_MANEUVER = 0x04;
+
+    //latency when no drive frame has been timed yet
+    public static final int NO_LATENCY = -1;
+    //load when the OS won't say
+    public static final float NO_LOAD = -1;
+
+    //last drive frame sequence the server accepted from the driver
+    private int sequence;
+    //when the server sent this, in its Clock.nowMicros()
+    private long serverMicros;
+    private int status;
+    private int watchdogFires;
+    //capture to pins for the last drive frame
+    private int latencyMicros = NO_LATENCY;
+    //system load average over the last minute
+    private float load = NO_LOAD;
+    private int numMotors;
+    private final boolean[] brakes;
+    private final float[] speeds;
+    //when we got this, in our Clock.nowMicros(), not sent over the wire
+    private long receivedMicros;
+
+    /**
+     * @param capacity the most motors this will ever need to hold
+     */
+    public Telemetry(int capacity) {
+        this.brakes = new boolean[capacity];
+        this.speeds = new float[capacity];
+        this.numMotors = capacity;
+    }
+
+    /**
+     * Copy another
+     *
+     * @param other
+     */
+    public Telemetry(Telemetry other) {
+        this(other.numMotors);
+        this.sequence = other.sequence;
+        this.serverMicros = other.serverMicros;
+        this.status = other.status;
+        this.watchdogFires = other.watchdogFires;
+        this.latencyMicros = other.latencyMicros;
+        this.load = other.load;
+        this.receivedMicros = other.receivedMicros;
+        System.arraycopy(other.brakes, 0, this.brakes, 0, numMotors);
+        System.arraycopy(other.speeds, 0, this.speeds, 0, numMotors);
+    }
+
+    /**
+     * Set the state one motor has been set to
+     *
+     * @param motor
+     * @param brake
+     * @param speed -1 to +1, or the brake strength if braking
+     */
+    public void set(int motor, boolean brake, float speed) {
+        this.brakes[motor] = brake;
+        this.speeds[motor] = speed;
+    }
+
+    public boolean getBrake(int motor) {
+        return this.brakes[motor];
+    }
+
+    public float getSpeed(int motor) {
+        return this.speeds[motor];
+    }
+
+    public int getNumMotors() {
+        return this.numMotors;
+    }
+
+    public void setNumMotors(int numMotors) {
+        if (numMotors > this.speeds.length) {
+            throw new IllegalArgumentException("Telemetry can only hold " + this.speeds.length + " motors");
+        }
+        this.numMotors = numMotors;
+    }
+
+    public int getSequence() {
+        return this.sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    public long getServerMicros() {
+        return this.serverMicros;
+    }
+
+    public void setServerMicros(long serverMicros) {
+        this.serverMicros = serverMicros;
+    }
+
+    public int getStatus() {
+        return this.status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public boolean isDriver() {
+        return (this.status & STATUS_DRIVER) != 0;
+    }
+
+    public boolean isWatchdogTripped() {
+        return (this.status & STATUS_WATCHDOG_TRIPPED) != 0;
+    }
+
+    public boolean isManeuverRunning() {
+        return (this.status & STATUS_MANEUVER) != 0;
+    }
+
+    public int getWatchdogFires() {
+        return this.watchdogFires;
+    }
+
+    public void setWatchdogFires(int watchdogFires) {
+        this.watchdogFires = watchdogFires;
+    }
+
+    /**
+     * @return capture to pins for the last drive frame, or NO_LATENCY
+     */
+    public int getLatencyMicros() {
+        return this.latencyMicros;
+    }
+
+    public void setLatencyMicros(int latencyMicros) {
+        this.latencyMicros = latencyMicros;
+    }
+
+    /**
+     * @return system load average, or NO_LOAD
+     */
+    public float getLoad() {
+        return this.load;
+    }
+
+    public void setLoad(float load) {
+        this.load = load;
+    }
+
+    public long getReceivedMicros() {
+        return this.receivedMicros;
+    }
+
+    public void setReceivedMicros(long receivedMicros) {
+        this.receivedMicros = receivedMicros;
+    }
+}
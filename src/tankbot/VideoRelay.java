@@ -0,0 +1,472 @@
+package tankbot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relays the camera's H.264 stream to any number of viewers, in place of
+ * piping raspivid into nc, which only serves one viewer and lets latency
+ * build up without limit when it can't keep up.
+ *
+ * Reads the raw (Annex B) stream from stdin or a file, given by videoSource,
+ * and splits it into NAL units at the start codes. Each NAL unit is read into
+ * memory once and every viewer is sent a view of that same buffer, nothing is
+ * copied per viewer. Viewers connect to videoPort and get the stream from the
+ * next keyframe on, so eg "nc pi 5001 | mplayer -demuxer h264es -" still
+ * works.
+ *
+ * A viewer which falls more than videoMaxQueueKb behind doesn't get queued
+ * up for: everything waiting for it is dropped, and so is everything after
+ * until the next keyframe, so it skips ahead to live rather than lagging
+ * further and further behind.
+ *
+ * raspivid only sends the SPS and PPS (which a decoder needs before it can
+ * start) at the very start unless run with -ih, so the newest ones are kept
+ * and sent ahead of the keyframe to anyone joining or skipping ahead.
+ *
+ * Reading a recorded .h264 file in place of the camera is the same as reading
+ * stdin, but far faster than real time, so set videoFps to play it at the
+ * camera's frame rate, and videoLoop to play it over and over.
+ *
+ * @author Luke
+ */
+public class VideoRelay {
+
+    //videoSource which means stdin
+    public static final String STDIN = "-";
+    public static final int DEFAULT_PORT = 5001;
+
+    //NAL unit types we care about
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    //NAL units are read into one of these until it's full, then a fresh one
+    //is started, so buffers viewers are still being sent are never written over
+    private static final int SLAB_SIZE = 1 << 20;
+
+    private final String source;
+    private final int port;
+    private final long maxQueuedBytes;
+    //0 to read as fast as possible
+    private final long frameNanos;
+    private final boolean loop;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private final List<Viewer> viewers = new ArrayList<>();
+    //NAL units read but not yet handed to the viewers
+    private final ConcurrentLinkedQueue<ByteBuffer> incoming = new ConcurrentLinkedQueue<>();
+    //newest parameter sets, only used on the relay thread
+    private ByteBuffer sps, pps;
+
+    //only used on the reader thread
+    private ByteBuffer slab;
+    private long nextFrameNanos;
+
+    private volatile long nalUnits = 0;
+    private volatile long bytesRead = 0;
+    private volatile long nalUnitsDropped = 0;
+
+    /**
+     * Set up a relay from the config: videoSource, videoPort, videoMaxQueueKb,
+     * videoFps and videoLoop. Call start() to start relaying.
+     *
+     * @param properties
+     */
+    public VideoRelay(Properties properties) {
+        this(properties.getProperty("videoSource", STDIN),
+                Integer.parseInt(properties.getProperty("videoPort", String.valueOf(DEFAULT_PORT))),
+                Integer.parseInt(properties.getProperty("videoMaxQueueKb", "256")) * 1024L,
+                Double.parseDouble(properties.getProperty("videoFps", "0")),
+                Boolean.parseBoolean(properties.getProperty("videoLoop", "false")));
+    }
+
+    /**
+     * @param source file to read the stream from, or "-" for stdin
+     * @param port where viewers connect
+     * @param maxQueuedBytes how far a viewer can fall behind before it skips
+     * to the next keyframe
+     * @param fps frames per second to play the stream at, or 0 to relay it as
+     * fast as it's read
+     * @param loop if true, start the file again when it runs out
+     */
+    public VideoRelay(String source, int port, long maxQueuedBytes, double fps, boolean loop) {
+        this.source = source;
+        this.port = port;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.frameNanos = fps > 0 ? Math.round(1e9 / fps) : 0;
+        this.loop = loop;
+    }
+
+    /**
+     * Start listening for viewers and reading the stream, each on a thread of
+     * its own
+     *
+     * @throws IOException if the port can't be listened on
+     */
+    public void start() throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        System.out.println("relaying video from " + (source.equals(STDIN) ? "stdin" : source) + " on port " + port);
+
+        Thread relayThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    relay();
+                } catch (IOException ex) {
+                    Logger.getLogger(VideoRelay.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }, "VideoRelay");
+        relayThread.setDaemon(true);
+        relayThread.start();
+
+        Thread readerThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    do {
+                        read(open());
+                    } while (loop && !source.equals(STDIN));
+                } catch (IOException ex) {
+                    Logger.getLogger(VideoRelay.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                System.out.println("video stream ended");
+            }
+        }, "VideoReader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    private ReadableByteChannel open() throws IOException {
+        if (source.equals(STDIN)) {
+            return Channels.newChannel(System.in);
+        }
+        return new FileInputStream(new File(source)).getChannel();
+    }
+
+    /**
+     * Read the stream until it ends, handing each NAL unit to the relay
+     * thread as soon as the start of the next one shows it's complete.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    private void read(ReadableByteChannel channel) throws IOException {
+        try {
+            if (slab == null || slab.remaining() < SLAB_SIZE / 2) {
+                slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            }
+            //where the NAL unit being read starts, or -1 before the first start code
+            int nalStart = -1;
+            //where to look for the next start code
+            int scan = slab.position();
+            int base = scan;
+            while (true) {
+                if (!slab.hasRemaining()) {
+                    //move the unfinished NAL unit into a fresh slab, one twice the size if it needs it.
+                    //Before the first start code, only keep what could be the start of one
+                    int from = nalStart < 0 ? Math.max(base, scan - 1) : nalStart;
+                    int length = slab.position() - from;
+                    ByteBuffer fresh = ByteBuffer.allocateDirect(length > SLAB_SIZE / 2 ? slab.capacity() * 2 : SLAB_SIZE);
+                    ByteBuffer unfinished = slab.duplicate();
+                    unfinished.position(from);
+                    fresh.put(unfinished);
+                    scan -= from;
+                    if (nalStart >= 0) {
+                        nalStart = 0;
+                    }
+                    base = 0;
+                    slab = fresh;
+                }
+                int read = channel.read(slab);
+                if (read < 0) {
+                    break;
+                }
+                bytesRead += read;
+                int end = slab.position();
+                while (scan + 3 <= end) {
+                    if ((slab.get(scan + 2) & 0xff) > 1) {
+                        //can't be a start code anywhere in these three bytes
+                        scan += 3;
+                    } else if (slab.get(scan) == 0 && slab.get(scan + 1) == 0 && slab.get(scan + 2) == 1) {
+                        //a four byte start code has another zero in front
+                        int start = scan - 1 >= Math.max(base, nalStart + 1) && slab.get(scan - 1) == 0 ? scan - 1 : scan;
+                        if (nalStart >= 0) {
+                            publish(nalStart, start);
+                        }
+                        nalStart = start;
+                        scan += 3;
+                    } else {
+                        scan++;
+                    }
+                }
+            }
+            if (nalStart >= 0 && slab.position() > nalStart) {
+                publish(nalStart, slab.position());
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Hand part of the slab to the relay thread, waiting first if it's the
+     * start of a new frame and we're playing at a set frame rate
+     *
+     * @param start
+     * @param end
+     */
+    private void publish(int start, int end) {
+        ByteBuffer nal = slab.asReadOnlyBuffer();
+        nal.limit(end).position(start);
+        nal = nal.slice();
+        if (frameNanos > 0 && isFrameStart(nal)) {
+            long now = System.nanoTime();
+            if (now - nextFrameNanos > frameNanos) {
+                //fallen behind (or just started), don't try to catch up
+                nextFrameNanos = now;
+            }
+            while (nextFrameNanos - System.nanoTime() > 0) {
+                LockSupport.parkNanos(nextFrameNanos - System.nanoTime());
+            }
+            nextFrameNanos += frameNanos;
+        }
+        incoming.add(nal);
+        nalUnits++;
+        selector.wakeup();
+    }
+
+    /**
+     * @param nal a NAL unit, start code and all
+     * @return its nal_unit_type
+     */
+    static int getType(ByteBuffer nal) {
+        int header = nal.get(2) == 1 ? 3 : 4;
+        return nal.limit() > header ? nal.get(header) & 0x1f : -1;
+    }
+
+    /**
+     * @param nal
+     * @return true if nal is the first slice of a picture, rather than a
+     * later slice of the same one
+     */
+    static boolean isFrameStart(ByteBuffer nal) {
+        int type = getType(nal);
+        int header = nal.get(2) == 1 ? 3 : 4;
+        //first_mb_in_slice is 0, which is a single 1 bit
+        return (type == NAL_SLICE || type == NAL_IDR) && nal.limit() > header + 1 && (nal.get(header + 1) & 0x80) != 0;
+    }
+
+    /**
+     * @param nal
+     * @return true if a decoder can start from here
+     */
+    static boolean isKeyframe(ByteBuffer nal) {
+        int type = getType(nal);
+        return type == NAL_SPS || (type == NAL_IDR && isFrameStart(nal));
+    }
+
+    /**
+     * The relay thread: accepts viewers, and sends each one whatever NAL
+     * units it's ready for. Never returns unless something goes badly wrong.
+     *
+     * @throws IOException
+     */
+    private void relay() throws IOException {
+        while (true) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else if (key.isWritable()) {
+                    send((Viewer) key.attachment());
+                }
+            }
+            ByteBuffer nal;
+            while ((nal = incoming.poll()) != null) {
+                int type = getType(nal);
+                if (type == NAL_SPS) {
+                    sps = nal;
+                } else if (type == NAL_PPS) {
+                    pps = nal;
+                }
+                boolean keyframe = isKeyframe(nal);
+                boolean frameStart = keyframe || isFrameStart(nal);
+                for (int i = 0; i < viewers.size(); i++) {
+                    viewers.get(i).offer(nal, keyframe, frameStart);
+                }
+            }
+            for (int i = viewers.size() - 1; i >= 0; i--) {
+                send(viewers.get(i));
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Viewer viewer = new Viewer(channel);
+        viewer.key = channel.register(selector, 0, viewer);
+        viewers.add(viewer);
+        System.out.println("video viewer connected from " + channel.socket().getRemoteSocketAddress() + ", " + viewers.size() + " watching");
+    }
+
+    /**
+     * Send a viewer as much as it will take without blocking, and watch for
+     * it being ready for more if it didn't take it all
+     *
+     * @param viewer
+     */
+    private void send(Viewer viewer) {
+        try {
+            while (!viewer.queue.isEmpty()) {
+                ByteBuffer head = viewer.queue.peek();
+                int written = viewer.channel.write(head);
+                viewer.queuedBytes -= written;
+                viewer.bytesSent += written;
+                if (head.hasRemaining()) {
+                    break;
+                }
+                viewer.queue.poll();
+            }
+            viewer.key.interestOps(viewer.queue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        } catch (IOException ex) {
+            System.out.println("video viewer " + viewer.channel.socket().getRemoteSocketAddress() + " gone after " + viewer.bytesSent + " bytes, " + viewer.dropped + " NAL units dropped");
+            viewer.key.cancel();
+            try {
+                viewer.channel.close();
+            } catch (IOException ignored) {
+            }
+            viewers.remove(viewer);
+        }
+    }
+
+    public long getNalUnits() {
+        return this.nalUnits;
+    }
+
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    /**
+     * @return NAL units not sent to viewers which couldn't keep up, totalled
+     * over every viewer
+     */
+    public long getNalUnitsDropped() {
+        return this.nalUnitsDropped;
+    }
+
+    /**
+     * Someone watching, and what's waiting to be sent to them. Only used on
+     * the relay thread.
+     */
+    private class Viewer {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        //views of the shared NAL units, each with its own position
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        private long queuedBytes = 0;
+        //true until the next keyframe, which is where a decoder can pick up
+        private boolean waitingForKeyframe = true;
+        private long bytesSent = 0;
+        private long dropped = 0;
+
+        Viewer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Queue a NAL unit to be sent, unless we're skipping to the next
+         * keyframe. Whether to skip is only decided at the start of a frame,
+         * so frames are always sent or dropped whole.
+         *
+         * @param nal
+         * @param keyframe
+         * @param frameStart
+         */
+        void offer(ByteBuffer nal, boolean keyframe, boolean frameStart) {
+            if (frameStart && !waitingForKeyframe && queuedBytes > maxQueuedBytes) {
+                //too far behind, skip to the next keyframe. A frame which has been part sent has to be finished or the stream's garbage
+                ByteBuffer head = queue.peek();
+                int keep = 0;
+                queuedBytes = 0;
+                if (head != null && head.position() > 0) {
+                    for (ByteBuffer queued : queue) {
+                        if (keep > 0 && (isFrameStart(queued) || getType(queued) == NAL_SPS)) {
+                            break;
+                        }
+                        keep++;
+                        queuedBytes += queued.remaining();
+                    }
+                }
+                drop(queue.size() - keep);
+                while (queue.size() > keep) {
+                    queue.pollLast();
+                }
+                waitingForKeyframe = true;
+            }
+            if (waitingForKeyframe) {
+                if (!keyframe) {
+                    drop(1);
+                    return;
+                }
+                waitingForKeyframe = false;
+                if (getType(nal) != NAL_SPS && sps != null && pps != null) {
+                    add(sps);
+                    add(pps);
+                }
+            }
+            add(nal);
+        }
+
+        private void add(ByteBuffer nal) {
+            ByteBuffer view = nal.duplicate();
+            queue.add(view);
+            queuedBytes += view.remaining();
+        }
+
+        private void drop(int count) {
+            dropped += count;
+            nalUnitsDropped += count;
+        }
+    }
+}
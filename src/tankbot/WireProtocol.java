@@ -0,0 +1,605 @@
+package tankbot;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary framing for messages sent between the client and the server.
+ *
+ * Every frame looks like this (big endian):
+ *
+ * [version:1][type:1][payload length:2][payload][crc32 of everything before:4]
+ *
+ * A motor command payload is [motor:1][flags:1][speed:2][sequence:4], where
+ * speed is fixed point (-1 to 1 scaled to +/-Short.MAX_VALUE), so a whole
+ * motor command frame is always MOTOR_COMMAND_FRAME_SIZE bytes.
+ *
+ * A drive frame payload is [sequence:4][capture time:8][motor count:1]
+ * followed by [flags:1][speed:2] for each motor in order. The capture time is
+ * when the client read the joystick, in Clock.nowMicros() on the client.
+ *
+ * A heartbeat payload is just [sequence:4], sent to show the link is alive
+ * when nothing has changed. Heartbeats go heartbeatRate times a second, and
+ * the server's watchdog stops the motors if it hears nothing for watchdogMs,
+ * which defaults to WATCHDOG_HEARTBEATS heartbeats, so losing one or two
+ * doesn't stop the tank. Both ends should be given the same config, and
+ * getHeartbeatRate() and getWatchdogMs() work them out from it.
+ *
+ * A takeover has no payload, and asks the server to make this client the
+ * driver. The server answers every client with a role payload of [role:1]
+ * whenever its role changes.
+ *
+ * A maneuver payload is [sequence:4][step count:1] followed by
+ * [op:1][duration micros:4][left:2][right:2] for each step, with left and
+ * right fixed point like speeds.
+ *
+ * A telemetry payload, sent from the server to every client, is
+ * [sequence:4][server time:8][status:1][watchdog fires:4][latency micros:4]
+ * [load:2][motor count:1] followed by [flags:1][speed:2] for each motor, as
+ * the server has actually set them. The load is the load average times 100,
+ * or 0xffff if unknown, and the latency is -1 if nothing has been timed.
+ *
+ * Either end can send a ping, with a payload of [sequence:4][origin:8], and
+ * the other end answers straight away with a pong of
+ * [sequence:4][origin:8][received:8][transmit:8], all in Clock.nowMicros()
+ * of whoever took them, for working out LinkTiming.
+ *
+ * One instance owns a single reusable buffer, so it must only be used by one
+ * thread. Encoding returns that buffer, which is only valid until the next
+ * call. Decoding leaves the fields of the last frame available from the
+ * getters rather than allocating a new object per frame.
+ *
+ * @author Luke
+ */
+public class WireProtocol {
+
+    public static final byte VERSION = 2;
+
+    public static final byte TYPE_MOTOR_COMMAND = 1;
+    public static final byte TYPE_DRIVE_FRAME = 2;
+    public static final byte TYPE_HEARTBEAT = 3;
+    public static final byte TYPE_TAKEOVER = 4;
+    public static final byte TYPE_ROLE = 5;
+    public static final byte TYPE_MANEUVER = 6;
+    public static final byte TYPE_TELEMETRY = 7;
+    public static final byte TYPE_PING = 8;
+    public static final byte TYPE_PONG = 9;
+
+    public static final byte ROLE_OBSERVER = 0;
+    public static final byte ROLE_DRIVER = 1;
+
+    //how often (Hz) a client with nothing new to send sends a heartbeat
+    public static final double DEFAULT_HEARTBEAT_RATE = 4;
+    //how many heartbeats in a row can go missing before the watchdog stops the motors
+    public static final int WATCHDOG_HEARTBEATS = 3;
+
+    //version, type and payload length
+    public static final int HEADER_SIZE = 4;
+    public static final int CRC_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 1024;
+
+    private static final int MOTOR_COMMAND_PAYLOAD_SIZE = 8;
+    public static final int MOTOR_COMMAND_FRAME_SIZE = HEADER_SIZE + MOTOR_COMMAND_PAYLOAD_SIZE + CRC_SIZE;
+
+    private static final int HEARTBEAT_PAYLOAD_SIZE = 4;
+
+    private static final int DRIVE_FRAME_HEADER_SIZE = 13;
+    private static final int DRIVE_FRAME_MOTOR_SIZE = 3;
+
+    private static final int MANEUVER_HEADER_SIZE = 5;
+    private static final int MANEUVER_STEP_SIZE = 9;
+
+    private static final int TELEMETRY_HEADER_SIZE = 24;
+    private static final int TELEMETRY_MOTOR_SIZE = 3;
+    private static final int NO_LOAD = 0xffff;
+
+    private static final int PING_PAYLOAD_SIZE = 12;
+    private static final int PONG_PAYLOAD_SIZE = 28;
+
+    private static final int FLAG_BRAKE = 0x01;
+
+    private static final float SPEED_SCALE = Short.MAX_VALUE;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_FRAME_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final DriveFrame driveFrame = new DriveFrame(DriveFrame.MAX_MOTORS);
+    private final Maneuver maneuver = new Maneuver();
+    private final Telemetry telemetry = new Telemetry(DriveFrame.MAX_MOTORS);
+
+    //fields of the last decoded frame
+    private byte type;
+    private int motor;
+    private boolean brake;
+    private float speed;
+    private int sequence;
+    private byte role;
+    private long originMicros;
+    private long receivedMicros;
+    private long transmitMicros;
+
+    /**
+     * @param properties
+     * @return how often (Hz) the client sends a heartbeat when it has nothing
+     * new to send
+     */
+    public static double getHeartbeatRate(Properties properties) {
+        return Double.parseDouble(properties.getProperty("heartbeatRate", String.valueOf(DEFAULT_HEARTBEAT_RATE)));
+    }
+
+    /**
+     * @param properties
+     * @return how long (ms) the server waits without hearing anything before
+     * the watchdog stops the motors, WATCHDOG_HEARTBEATS heartbeats unless
+     * watchdogMs is set
+     */
+    public static long getWatchdogMs(Properties properties) {
+        long heartbeatMs = Math.round(1000 / getHeartbeatRate(properties));
+        String watchdogMs = properties.getProperty("watchdogMs");
+        if (watchdogMs == null) {
+            return WATCHDOG_HEARTBEATS * heartbeatMs;
+        }
+        long ms = Long.parseLong(watchdogMs);
+        if (ms < 2 * heartbeatMs) {
+            System.err.println("watchdogMs=" + ms + " is less than two heartbeats (" + heartbeatMs + "ms each), losing one will stop the motors");
+        }
+        return ms;
+    }
+
+    /**
+     * Encode a motor command into the reusable buffer
+     *
+     * @param motor
+     * @param brake
+     * @param speed -1 to +1
+     * @param sequence
+     * @return buffer ready to be written, valid until the next encode
+     */
+    public ByteBuffer encodeMotorCommand(int motor, boolean brake, float speed, int sequence) {
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(TYPE_MOTOR_COMMAND);
+        buffer.putShort((short) MOTOR_COMMAND_PAYLOAD_SIZE);
+        buffer.put((byte) motor);
+        buffer.put((byte) (brake ? FLAG_BRAKE : 0));
+        buffer.putShort(speedToFixed(speed));
+        buffer.putInt(sequence);
+        return finishFrame();
+    }
+
+    /**
+     * Encode the state of every motor into the reusable buffer
+     *
+     * @param frame
+     * @return buffer ready to be written, valid until the next encode
+     */
+    public ByteBuffer encodeDriveFrame(DriveFrame frame) {
+        int numMotors = frame.getNumMotors();
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(TYPE_DRIVE_FRAME);
+        buffer.putShort((short) (DRIVE_FRAME_HEADER_SIZE + numMotors * DRIVE_FRAME_MOTOR_SIZE));
+        buffer.putInt(frame.getSequence());
+        buffer.putLong(frame.getCaptureMicros());
+        buffer.put((byte) numMotors);
+        for (int i = 0; i < numMotors; i++) {
+            buffer.put((byte) (frame.getBrake(i) ? FLAG_BRAKE : 0));
+            buffer.putShort(speedToFixed(frame.getSpeed(i)));
+        }
+        return finishFrame();
+    }
+
+    /**
+     * Encode a heartbeat into the reusable buffer
+     *
+     * @param sequence
+     * @return buffer ready to be written, valid until the next encode
+     */
+    public ByteBuffer encodeHeartbeat(int sequence) {
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(TYPE_HEARTBEAT);
+        buffer.putShort((short) HEARTBEAT_PAYLOAD_SIZE);
+        buffer.putInt(sequence);
+        return finishFrame();
+    }
+
+    /**
+     * Encode a request to become the driver into the reusable buffer
+     *
+     * @return buffer ready to be written, valid until the next encode
+     */
+    public ByteBuffer encodeTakeover() {
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(TYPE_TAKEOVER);
+        buffer.putShort((short) 0);
+        return finishFrame();
+    }
+
+    /**
+     * Encode a client's new role into the reusable buffer
+     *
+     * @param role ROLE_DRIVER or ROLE_OBSERVER
+     * @return buffer ready to be written, valid until the next encode
+     */
+    public ByteBuffer encodeRole(byte role) {
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(TYPE_ROLE);
+        buffer.putShort((short) 1);
+        buffer.put(role);
+        return finishFrame();
+    }
+
+    /**
+     * Encode a maneuver for the server to run into the reusable buffer
+     *
+     * @param maneuver
+     * @return buffer ready to be written, valid until the next encode
+     */
+    public ByteBuffer encodeManeuver(Maneuver maneuver) {
+        int numSteps = maneuver.getNumSteps();
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(TYPE_MANEUVER);
+        buffer.putShort((short) (MANEUVER_HEADER_SIZE + numSteps * MANEUVER_STEP_SIZE));
+        buffer.putInt(maneuver.getSequence());
+        buffer.put((byte) numSteps);
+        for (int i = 0; i < numSteps; i++) {
+            buffer.put(maneuver.getOp(i));
+            buffer.putInt(maneuver.getDurationMicros(i));
+            buffer.putShort(speedToFixed(maneuver.getLeft(i)));
+            buffer.putShort(speedToFixed(maneuver.getRight(i)));
+        }
+        return finishFrame();
+    }
+
+    /**
+     * Encode what the server is doing into the reusable buffer
+     *
+     * @param telemetry
+     * @return buffer ready to be written, valid until the next encode
+     */
+    public ByteBuffer encodeTelemetry(Telemetry telemetry) {
+        int numMotors = telemetry.getNumMotors();
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(TYPE_TELEMETRY);
+        buffer.putShort((short) (TELEMETRY_HEADER_SIZE + numMotors * TELEMETRY_MOTOR_SIZE));
+        buffer.putInt(telemetry.getSequence());
+        buffer.putLong(telemetry.getServerMicros());
+        buffer.put((byte) telemetry.getStatus());
+        buffer.putInt(telemetry.getWatchdogFires());
+        buffer.putInt(telemetry.getLatencyMicros());
+        float load = telemetry.getLoad();
+        buffer.putShort((short) (load < 0 ? NO_LOAD : Math.min(NO_LOAD - 1, Math.round(load * 100))));
+        buffer.put((byte) numMotors);
+        for (int i = 0; i < numMotors; i++) {
+            buffer.put((byte) (telemetry.getBrake(i) ? FLAG_BRAKE : 0));
+            buffer.putShort(speedToFixed(telemetry.getSpeed(i)));
+        }
+        return finishFrame();
+    }
+
+    /**
+     * Encode a ping into the reusable buffer
+     *
+     * @param sequence
+     * @param originMicros Clock.nowMicros() now
+     * @return buffer ready to be written, valid until the next encode
+     */
+    public ByteBuffer encodePing(int sequence, long originMicros) {
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(TYPE_PING);
+        buffer.putShort((short) PING_PAYLOAD_SIZE);
+        buffer.putInt(sequence);
+        buffer.putLong(originMicros);
+        return finishFrame();
+    }
+
+    /**
+     * Encode the answer to a ping into the reusable buffer
+     *
+     * @param sequence from the ping
+     * @param originMicros from the ping
+     * @param receivedMicros when the ping arrived
+     * @param transmitMicros Clock.nowMicros() now
+     * @return buffer ready to be written, valid until the next encode
+     */
+    public ByteBuffer encodePong(int sequence, long originMicros, long receivedMicros, long transmitMicros) {
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(TYPE_PONG);
+        buffer.putShort((short) PONG_PAYLOAD_SIZE);
+        buffer.putInt(sequence);
+        buffer.putLong(originMicros);
+        buffer.putLong(receivedMicros);
+        buffer.putLong(transmitMicros);
+        return finishFrame();
+    }
+
+    /**
+     * Append the CRC and flip the buffer ready for writing
+     */
+    private ByteBuffer finishFrame() {
+        crc.reset();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode one complete frame starting at the buffer's position. The
+     * position is always moved past the frame, even if it was rejected.
+     *
+     * @param in
+     * @return false if the frame was corrupt or of an unknown version/type
+     */
+    public boolean decode(ByteBuffer in) {
+        int start = in.position();
+        int payloadLength = in.getShort(start + 2) & 0xffff;
+        int crcOffset = start + HEADER_SIZE + payloadLength;
+
+        crc.reset();
+        crc.update(in.array(), in.arrayOffset() + start, HEADER_SIZE + payloadLength);
+        boolean valid = (int) crc.getValue() == in.getInt(crcOffset);
+
+        byte version = in.get(start);
+        this.type = in.get(start + 1);
+        in.position(start + HEADER_SIZE);
+
+        if (valid && version == VERSION) {
+            switch (type) {
+                case TYPE_MOTOR_COMMAND:
+                    if (payloadLength == MOTOR_COMMAND_PAYLOAD_SIZE) {
+                        this.motor = in.get() & 0xff;
+                        this.brake = (in.get() & FLAG_BRAKE) != 0;
+                        this.speed = in.getShort() / SPEED_SCALE;
+                        this.sequence = in.getInt();
+                    } else {
+                        valid = false;
+                    }
+                    break;
+                case TYPE_DRIVE_FRAME:
+                    valid = decodeDriveFrame(in, payloadLength);
+                    break;
+                case TYPE_MANEUVER:
+                    valid = decodeManeuver(in, payloadLength);
+                    break;
+                case TYPE_TELEMETRY:
+                    valid = decodeTelemetry(in, payloadLength);
+                    break;
+                case TYPE_PING:
+                    if (payloadLength == PING_PAYLOAD_SIZE) {
+                        this.sequence = in.getInt();
+                        this.originMicros = in.getLong();
+                    } else {
+                        valid = false;
+                    }
+                    break;
+                case TYPE_PONG:
+                    if (payloadLength == PONG_PAYLOAD_SIZE) {
+                        this.sequence = in.getInt();
+                        this.originMicros = in.getLong();
+                        this.receivedMicros = in.getLong();
+                        this.transmitMicros = in.getLong();
+                    } else {
+                        valid = false;
+                    }
+                    break;
+                case TYPE_TAKEOVER:
+                    valid = payloadLength == 0;
+                    break;
+                case TYPE_ROLE:
+                    if (payloadLength == 1) {
+                        this.role = in.get();
+                    } else {
+                        valid = false;
+                    }
+                    break;
+                case TYPE_HEARTBEAT:
+                    if (payloadLength == HEARTBEAT_PAYLOAD_SIZE) {
+                        this.sequence = in.getInt();
+                    } else {
+                        valid = false;
+                    }
+                    break;
+                default:
+                    valid = false;
+            }
+        } else {
+            valid = false;
+        }
+
+        in.position(crcOffset + CRC_SIZE);
+        return valid;
+    }
+
+    private boolean decodeDriveFrame(ByteBuffer in, int payloadLength) {
+        if (payloadLength < DRIVE_FRAME_HEADER_SIZE) {
+            return false;
+        }
+        int sequence = in.getInt();
+        long captureMicros = in.getLong();
+        int numMotors = in.get() & 0xff;
+        if (payloadLength != DRIVE_FRAME_HEADER_SIZE + numMotors * DRIVE_FRAME_MOTOR_SIZE) {
+            return false;
+        }
+        this.sequence = sequence;
+        driveFrame.setSequence(sequence);
+        driveFrame.setCaptureMicros(captureMicros);
+        driveFrame.setNumMotors(numMotors);
+        for (int i = 0; i < numMotors; i++) {
+            boolean motorBrake = (in.get() & FLAG_BRAKE) != 0;
+            driveFrame.set(i, motorBrake, in.getShort() / SPEED_SCALE);
+        }
+        return true;
+    }
+
+    private boolean decodeManeuver(ByteBuffer in, int payloadLength) {
+        if (payloadLength < MANEUVER_HEADER_SIZE) {
+            return false;
+        }
+        int sequence = in.getInt();
+        int numSteps = in.get() & 0xff;
+        if (numSteps > Maneuver.MAX_STEPS || payloadLength != MANEUVER_HEADER_SIZE + numSteps * MANEUVER_STEP_SIZE) {
+            return false;
+        }
+        this.sequence = sequence;
+        maneuver.clear();
+        maneuver.setSequence(sequence);
+        for (int i = 0; i < numSteps; i++) {
+            byte op = in.get();
+            int micros = in.getInt();
+            float left = in.getShort() / SPEED_SCALE;
+            float right = in.getShort() / SPEED_SCALE;
+            if (op < Maneuver.DRIVE || op > Maneuver.WAIT || micros < 0) {
+                return false;
+            }
+            maneuver.add(op, left, right, micros);
+        }
+        return true;
+    }
+
+    private boolean decodeTelemetry(ByteBuffer in, int payloadLength) {
+        if (payloadLength < TELEMETRY_HEADER_SIZE) {
+            return false;
+        }
+        int sequence = in.getInt();
+        long serverMicros = in.getLong();
+        int status = in.get() & 0xff;
+        int watchdogFires = in.getInt();
+        int latencyMicros = in.getInt();
+        int load = in.getShort() & 0xffff;
+        int numMotors = in.get() & 0xff;
+        if (payloadLength != TELEMETRY_HEADER_SIZE + numMotors * TELEMETRY_MOTOR_SIZE) {
+            return false;
+        }
+        this.sequence = sequence;
+        telemetry.setSequence(sequence);
+        telemetry.setServerMicros(serverMicros);
+        telemetry.setStatus(status);
+        telemetry.setWatchdogFires(watchdogFires);
+        telemetry.setLatencyMicros(latencyMicros);
+        telemetry.setLoad(load == NO_LOAD ? Telemetry.NO_LOAD : load / 100f);
+        telemetry.setNumMotors(numMotors);
+        for (int i = 0; i < numMotors; i++) {
+            boolean motorBrake = (in.get() & FLAG_BRAKE) != 0;
+            telemetry.set(i, motorBrake, in.getShort() / SPEED_SCALE);
+        }
+        return true;
+    }
+
+    /**
+     * Length of the frame starting at the buffer's position, or -1 if not
+     * enough of it has arrived to tell
+     *
+     * @param in
+     * @return
+     */
+    public static int frameLength(ByteBuffer in) {
+        if (in.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+        return HEADER_SIZE + (in.getShort(in.position() + 2) & 0xffff) + CRC_SIZE;
+    }
+
+    /**
+     * Compare sequence numbers, allowing for them wrapping around
+     *
+     * @param sequence
+     * @param last
+     * @return true if sequence was sent after last
+     */
+    public static boolean isNewer(int sequence, int last) {
+        return sequence - last > 0;
+    }
+
+    private static short speedToFixed(float speed) {
+        if (speed > 1) {
+            speed = 1;
+        } else if (speed < -1) {
+            speed = -1;
+        }
+        return (short) Math.round(speed * SPEED_SCALE);
+    }
+
+    public byte getType() {
+        return this.type;
+    }
+
+    public int getMotor() {
+        return this.motor;
+    }
+
+    public boolean getBrake() {
+        return this.brake;
+    }
+
+    public float getSpeed() {
+        return this.speed;
+    }
+
+    public int getSequence() {
+        return this.sequence;
+    }
+
+    public byte getRole() {
+        return this.role;
+    }
+
+    /**
+     * @return when the last ping or pong's ping was sent, on the pinger's
+     * clock
+     */
+    public long getOriginMicros() {
+        return this.originMicros;
+    }
+
+    /**
+     * @return when the last pong's ping arrived, on the ponger's clock
+     */
+    public long getReceivedMicros() {
+        return this.receivedMicros;
+    }
+
+    /**
+     * @return when the last pong was sent, on the ponger's clock
+     */
+    public long getTransmitMicros() {
+        return this.transmitMicros;
+    }
+
+    /**
+     * The last decoded drive frame. Reused, so only valid until the next
+     * decode.
+     *
+     * @return
+     */
+    public DriveFrame getDriveFrame() {
+        return this.driveFrame;
+    }
+
+    /**
+     * The last decoded maneuver. Reused, so only valid until the next
+     * decode.
+     *
+     * @return
+     */
+    public Maneuver getManeuver() {
+        return this.maneuver;
+    }
+
+    /**
+     * The last decoded telemetry. Reused, so only valid until the next
+     * decode.
+     *
+     * @return
+     */
+    public Telemetry getTelemetry() {
+        return this.telemetry;
+    }
+}
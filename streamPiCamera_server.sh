@@ -2,9 +2,12 @@
 
 #raspivid -hf -w 1280 -h 1024 -t 999999999 -fps 20 -b 5000000 -o - | nc -l  -p 5001
 
-raspivid -hf -w 800 -h 600 -t 999999999 -fps 20 -b 5000000 -o - | nc -l  -p 5001
+#raspivid -hf -w 800 -h 600 -t 999999999 -fps 20 -b 5000000 -o - | nc -l  -p 5001
 
 #raspivid -hf -w 1680 -h 1050  -t 999999999 -fps 20 -b 15000000 -o - | nc -l  -p 5001
 
+#relay through the server, so more than one viewer can watch and a slow one skips ahead rather than lagging (needs videoSource=- in the config)
+raspivid -hf -w 800 -h 600 -t 999999999 -fps 20 -b 5000000 -ih -o - | java -jar dist/TankBot.jar -s -c GunControlLinux.ini
+
 
 